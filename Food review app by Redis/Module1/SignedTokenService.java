@@ -0,0 +1,190 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * Stateless login tokens: base64url(json of the UserDTO fields, expire time and token id) + "." +
+ * base64url(HMAC-SHA256). Checking one costs only CPU. Redis only keeps the ids of tokens revoked
+ * before they expire, and every node holds a copy of them fed by pub/sub, so logged in reads go on
+ * while redis is slow or down.
+ */
+@Slf4j
+@Component
+public class SignedTokenService implements MessageListener {
+    private static final String REVOKED_KEY = "login:revoked";
+    private static final String REVOKE_CHANNEL = "login:revoke";
+    private static final String HMAC = "HmacSHA256";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //    redis: a random token with the user in a redis hash, signed: this class
+    @Value("${login.token.mode:redis}")
+    private String mode;
+
+    @Value("${login.token.secret:}")
+    private String secret;
+
+    @Value("${login.token.revocation-sync-seconds:60}")
+    private long revocationSyncSeconds;
+
+    //    token id -> expire millis
+    private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    private SecretKeySpec key;
+    private ThreadLocal<Mac> macs;
+    private ScheduledExecutorService syncExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) return;
+        if (StrUtil.isBlank(secret)) throw new IllegalStateException("login.token.secret is required for signed tokens");
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(REVOKE_CHANNEL));
+//        pub/sub messages are lost while disconnected, so read the whole set again from time to time
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+        syncExecutor.scheduleWithFixedDelay(this::syncRevoked, 0, revocationSyncSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (syncExecutor != null) syncExecutor.shutdown();
+    }
+
+    public boolean isEnabled() {
+        return "signed".equals(mode);
+    }
+
+    /**
+     * random tokens are uuids without dots
+     */
+    public boolean isSignedToken(String token) {
+        return token.indexOf('.') > 0;
+    }
+
+    public String issue(UserDTO user) {
+        JSONObject claims = new JSONObject();
+        claims.set("id", user.getId());
+        claims.set("nickName", user.getNickName());
+        claims.set("icon", user.getIcon());
+        claims.set("exp", System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOGIN_USER_TTL));
+        claims.set("jti", UUID.randomUUID().toString(true));
+        String payload = ENCODER.encodeToString(claims.toString().getBytes(StandardCharsets.UTF_8));
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * @return the user of a valid token, null if it is forged, expired or revoked
+     */
+    public UserDTO verify(String token) {
+        JSONObject claims = verifiedClaims(token);
+        if (claims == null || revoked.containsKey(claims.getStr("jti"))) return null;
+        UserDTO user = new UserDTO();
+        user.setId(claims.getLong("id"));
+        user.setNickName(claims.getStr("nickName"));
+        user.setIcon(claims.getStr("icon"));
+        return user;
+    }
+
+    public void revoke(String token) {
+        JSONObject claims = verifiedClaims(token);
+        if (claims == null) return;
+        String jti = claims.getStr("jti");
+        long exp = claims.getLong("exp");
+        revoked.put(jti, exp);
+        stringRedisTemplate.opsForZSet().add(REVOKED_KEY, jti, exp);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(REVOKED_KEY, 0, System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(REVOKE_CHANNEL, jti + ":" + exp);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.lastIndexOf(':');
+        revoked.put(body.substring(0, split), Long.valueOf(body.substring(split + 1)));
+    }
+
+    private JSONObject verifiedClaims(String token) {
+        int dot = token.indexOf('.');
+//        signed tokens are not accepted unless the mode is on
+        if (key == null || dot <= 0) return null;
+        String payload = token.substring(0, dot);
+        byte[] expected = sign(payload).getBytes(StandardCharsets.UTF_8);
+        byte[] actual = token.substring(dot + 1).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, actual)) return null;
+        JSONObject claims;
+        try {
+            claims = JSONUtil.parseObj(new String(DECODER.decode(payload), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            return null;
+        }
+        Long exp = claims.getLong("exp");
+        if (exp == null || exp < System.currentTimeMillis()) return null;
+        return claims;
+    }
+
+    private String sign(String payload) {
+        return ENCODER.encodeToString(macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void syncRevoked() {
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(exp -> exp < now);
+        try {
+            Set<ZSetOperations.TypedTuple<String>> tuples =
+                    stringRedisTemplate.opsForZSet().rangeByScoreWithScores(REVOKED_KEY, now, Double.MAX_VALUE);
+            if (tuples == null) return;
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                revoked.put(tuple.getValue(), tuple.getScore().longValue());
+            }
+        } catch (RuntimeException e) {
+//            keep serving with the revocations we already know
+            log.warn("failed to sync revoked tokens: {}", e.getMessage());
+        }
+    }
+}
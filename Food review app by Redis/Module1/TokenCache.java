@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
+
+/**
+ * Keeps the UserDTO of recently seen tokens in the JVM, so RefreshTokenInterceptor does not read
+ * the redis hash on every request, and refreshes the token TTL at most once per interval instead
+ * of on every request. Logout evicts the token on every node through pub/sub.
+ */
+@Component
+public class TokenCache implements MessageListener {
+    private static final String LOGOUT_CHANNEL = "login:logout";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${login.token-cache.capacity:10000}")
+    private int capacity;
+
+    //    how long a token is trusted without reading redis again, at least the refresh interval,
+    //    otherwise the entry is gone before it is due and the interval never applies
+    @Value("${login.token-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    @Value("${login.token-cache.refresh-interval-seconds:60}")
+    private long refreshIntervalSeconds;
+
+    private LRUCache<String, Entry> cache;
+
+    @PostConstruct
+    private void init() {
+        if (ttlSeconds < refreshIntervalSeconds) {
+            throw new IllegalStateException("login.token-cache.ttl-seconds (" + ttlSeconds
+                    + ") must not be shorter than login.token-cache.refresh-interval-seconds (" + refreshIntervalSeconds + ")");
+        }
+        cache = CacheUtil.newLRUCache(capacity, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(LOGOUT_CHANNEL));
+    }
+
+    /**
+     * @return the logged in user of token, null if the token is unknown or expired
+     */
+    public UserDTO get(String token) {
+        Entry entry = cache.get(token, false);
+        if (entry == null) {
+            Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+            if (userMap.isEmpty()) return null;
+//            loading counts as the first refresh, the entry is due again one interval later
+            stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.SECONDS);
+            entry = new Entry(BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false));
+            cache.put(token, entry);
+            return entry.user;
+        }
+        refreshIfDue(token, entry);
+        return entry.user;
+    }
+
+    public void logout(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        cache.remove(token);
+        stringRedisTemplate.convertAndSend(LOGOUT_CHANNEL, token);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        cache.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void refreshIfDue(String token, Entry entry) {
+        long now = System.currentTimeMillis();
+        long last = entry.lastRefresh.get();
+        if (now - last < TimeUnit.SECONDS.toMillis(refreshIntervalSeconds)) return;
+//        only the thread winning the CAS refreshes, the others go on
+        if (entry.lastRefresh.compareAndSet(last, now)) {
+            stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class Entry {
+        private final UserDTO user;
+        private final AtomicLong lastRefresh = new AtomicLong(System.currentTimeMillis());
+
+        Entry(UserDTO user) {
+            this.user = user;
+        }
+    }
+}
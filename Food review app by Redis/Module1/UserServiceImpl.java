@@ -12,6 +12,8 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenService;
+import com.hmdp.utils.TokenCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.connection.BitFieldSubCommands;
@@ -44,6 +46,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private TokenCache tokenCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //verify phone
@@ -74,11 +82,13 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         User user = query().eq("phone", phone).one();
         if (user == null) user = createUserByPhone(phone);
 //        session.setAttribute("user",user);
+        UserDTO userDTO = BeanUtil.copyProperties(user,UserDTO.class);
+//        the signed token carries the user itself, nothing is saved into redis
+        if (signedTokenService.isEnabled()) return Result.ok(signedTokenService.issue(userDTO));
 //        save user info into redis
 //        generate unique token
         String token = UUID.randomUUID().toString(true);
 //        convert user into hashMap and save and set expire
-        UserDTO userDTO = BeanUtil.copyProperties(user,UserDTO.class);
         String tokenKey = LOGIN_USER_KEY + token;
         stringRedisTemplate.opsForHash().putAll(tokenKey,BeanUtil.beanToMap(userDTO,
                 new HashMap<>(),
@@ -91,6 +101,14 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    public Result logout(String token) {
+        if (signedTokenService.isSignedToken(token)) signedTokenService.revoke(token);
+//        the token may still be cached by RefreshTokenInterceptor on every node
+        else tokenCache.logout(token);
+        UserHolder.removeUser();
+        return Result.ok();
+    }
+
     @Override
     public Result sign() {
         Long userId = UserHolder.getUser().getId();
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.util.StrUtil;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter sized from the expected number of ids and the wanted false positive rate.
+ * "false" means the id surely does not exist, "true" means it may exist. The bits live either
+ * in this JVM or in a redis bitmap shared by all nodes.
+ */
+public class BloomFilter {
+    //    a redis bitmap can not be longer than 2^32 bits
+    private static final long MAX_BITS = 1L << 32;
+
+    private final long numBits;
+    private final int numHashes;
+    private final Bits bits;
+
+    private BloomFilter(long numBits, int numHashes, Bits bits) {
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.bits = bits;
+    }
+
+    public static BloomFilter local(long expectedInsertions, double fpp) {
+        long numBits = numBits(expectedInsertions, fpp);
+        return new BloomFilter(numBits, numHashes(numBits, expectedInsertions), new LocalBits(numBits));
+    }
+
+    /**
+     * Every node must hash into the same bitmap the same way, but each one sizes the filter from the
+     * row count it saw. The first node stores its size and hash count at key:size, the others use those
+     * instead of their own. Delete key:size and the bitmap to resize the filter.
+     */
+    public static BloomFilter redis(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        long proposed = numBits(expectedInsertions, fpp);
+        String sizeKey = key + ":size";
+        stringRedisTemplate.opsForValue().setIfAbsent(sizeKey, proposed + ":" + numHashes(proposed, expectedInsertions));
+        String[] size = StrUtil.splitToArray(stringRedisTemplate.opsForValue().get(sizeKey), ':');
+        long numBits = Long.parseLong(size[0]);
+        return new BloomFilter(numBits, Integer.parseInt(size[1]), new RedisBits(stringRedisTemplate, key + ":" + numBits));
+    }
+
+    //    a power of two, so an index is a mask instead of a modulo
+    private static long numBits(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        return Math.min(Long.highestOneBit(Math.max(m, 64) - 1) << 1, MAX_BITS);
+    }
+
+    private static int numHashes(long numBits, long expectedInsertions) {
+        return Math.max(1, (int) Math.round((double) numBits / Math.max(expectedInsertions, 1) * Math.log(2)));
+    }
+
+    public void put(Object value) {
+        bits.set(indexes(value));
+    }
+
+    public boolean mightContain(Object value) {
+        return bits.allSet(indexes(value));
+    }
+
+    /**
+     * double hashing over the two halves of a 128 bit murmur hash
+     */
+    private long[] indexes(Object value) {
+        long[] hash = MurmurHash.hash128(StrUtil.utf8Bytes(String.valueOf(value)));
+        long[] indexes = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            indexes[i] = (combined & Long.MAX_VALUE) & (numBits - 1);
+            combined += hash[1];
+        }
+        return indexes;
+    }
+
+    private interface Bits {
+        void set(long[] indexes);
+
+        boolean allSet(long[] indexes);
+    }
+
+    private static class LocalBits implements Bits {
+        private final AtomicLongArray words;
+
+        LocalBits(long numBits) {
+            words = new AtomicLongArray((int) ((numBits + 63) >>> 6));
+        }
+
+        @Override
+        public void set(long[] indexes) {
+            for (long index : indexes) {
+                int i = (int) (index >>> 6);
+                long mask = 1L << index;
+                long old;
+                do {
+                    old = words.get(i);
+                    if ((old & mask) != 0) break;
+                } while (!words.compareAndSet(i, old, old | mask));
+            }
+        }
+
+        @Override
+        public boolean allSet(long[] indexes) {
+            for (long index : indexes) {
+                if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class RedisBits implements Bits {
+        private final StringRedisTemplate stringRedisTemplate;
+        private final String key;
+
+        RedisBits(StringRedisTemplate stringRedisTemplate, String key) {
+            this.stringRedisTemplate = stringRedisTemplate;
+            this.key = key;
+        }
+
+        @Override
+        public void set(long[] indexes) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (long index : indexes) conn.setBit(key, index, true);
+                return null;
+            });
+        }
+
+        @Override
+        public boolean allSet(long[] indexes) {
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (long index : indexes) conn.getBit(key, index);
+                return null;
+            });
+            for (Object result : results) {
+                if (!Boolean.TRUE.equals(result)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The one pool every cache rebuild runs on. A key is queued at most once until its rebuild is done,
+ * the queue is bounded and drops the oldest rebuild when full (a newer request for stale data is
+ * worth more), failures are logged instead of disappearing in a Future nobody reads, and the
+ * counters below, logged every cache.rebuild.stats-log-seconds, show when a rebuild storm is going on.
+ * <p>
+ * With virtual threads every rebuild gets its own thread and there is no queue; the pending keys
+ * still keep it to one rebuild per key, and at most cache.rebuild.threads rebuilds run at once,
+ * a rebuild over that is dropped like one that finds the queue full.
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+    @Value("${cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    //    only takes effect on a JDK with virtual threads (21+)
+    @Value("${cache.rebuild.virtual-threads:false}")
+    private boolean virtualThreads;
+
+    //    0 turns the stats log off
+    @Value("${cache.rebuild.stats-log-seconds:60}")
+    private long statsLogSeconds;
+
+    private Executor executor;
+    //    null with virtual threads
+    private ThreadPoolExecutor pool;
+    private ScheduledExecutorService statsExecutor;
+
+    //    keys queued or running
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalMillis = new LongAdder();
+    private final AtomicLong maxMillis = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private long lastLoggedSubmitted = -1;
+
+    @PostConstruct
+    private void init() {
+        ThreadFactory virtualFactory = virtualThreads ? virtualThreadFactory() : null;
+        if (virtualFactory != null) {
+//            threads are free but mysql is not, the permits bound the rebuilds hitting it
+            Semaphore permits = new Semaphore(threads);
+            executor = task -> {
+                if (!permits.tryAcquire()) {
+                    discard(task);
+                    return;
+                }
+                virtualFactory.newThread(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }).start();
+            };
+        } else {
+            pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), platformThreadFactory(), this::dropOldest);
+            executor = pool;
+        }
+        if (statsLogSeconds > 0) {
+            statsExecutor = Executors.newSingleThreadScheduledExecutor();
+            statsExecutor.scheduleWithFixedDelay(this::logStats, statsLogSeconds, statsLogSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (pool != null) pool.shutdown();
+        if (statsExecutor != null) statsExecutor.shutdownNow();
+    }
+
+    /**
+     * @param onDiscard runs instead of task if the key is already pending or the task is dropped,
+     *                  e.g. to free the lock taken for the rebuild
+     * @return false if the task was not queued
+     */
+    public boolean submit(String key, Runnable task, Runnable onDiscard) {
+        if (!pending.add(key)) {
+            deduplicated.increment();
+            onDiscard.run();
+            return false;
+        }
+        submitted.increment();
+        executor.execute(new RebuildTask(key, task, onDiscard));
+        return true;
+    }
+
+    public int getQueueDepth() {
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", getQueueDepth());
+        stats.put("active", active.get());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("succeeded", succeeded.sum());
+        stats.put("failed", failed.sum());
+        long done = succeeded.sum() + failed.sum();
+        stats.put("avgMillis", done == 0 ? 0 : totalMillis.sum() / done);
+        stats.put("maxMillis", maxMillis.get());
+        return stats;
+    }
+
+    /**
+     * only when something was submitted since the last time, warn when rebuilds were dropped
+     */
+    private void logStats() {
+        long now = submitted.sum() + deduplicated.sum();
+        if (now == lastLoggedSubmitted) return;
+        lastLoggedSubmitted = now;
+        Map<String, Object> stats = getStats();
+        if (dropped.sum() > 0) log.warn("cache rebuild stats {}", stats);
+        else log.info("cache rebuild stats {}", stats);
+    }
+
+    private void dropOldest(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            discard(task);
+            return;
+        }
+        Runnable oldest = executor.getQueue().poll();
+        if (oldest != null) discard(oldest);
+        if (!executor.getQueue().offer(task)) discard(task);
+    }
+
+    private void discard(Runnable task) {
+        dropped.increment();
+        RebuildTask rebuildTask = (RebuildTask) task;
+        pending.remove(rebuildTask.key);
+        log.warn("cache rebuild of {} dropped, too many rebuilds pending", rebuildTask.key);
+        rebuildTask.onDiscard.run();
+    }
+
+    private ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Object named = Class.forName("java.lang.Thread$Builder")
+                    .getMethod("name", String.class, long.class).invoke(builder, "cache-rebuild-", 0L);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(named);
+        } catch (ReflectiveOperationException e) {
+            log.warn("virtual threads are not available, using platform threads");
+            return null;
+        }
+    }
+
+    private ThreadFactory platformThreadFactory() {
+        AtomicInteger number = new AtomicInteger();
+        ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        return r -> {
+            Thread thread = defaultFactory.newThread(r);
+            thread.setName("cache-rebuild-" + number.getAndIncrement());
+            return thread;
+        };
+    }
+
+    private class RebuildTask implements Runnable {
+        private final String key;
+        private final Runnable task;
+        private final Runnable onDiscard;
+
+        RebuildTask(String key, Runnable task, Runnable onDiscard) {
+            this.key = key;
+            this.task = task;
+            this.onDiscard = onDiscard;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.currentTimeMillis();
+            active.incrementAndGet();
+            try {
+                task.run();
+                succeeded.increment();
+            } catch (Throwable e) {
+                failed.increment();
+                log.error("cache rebuild of {} failed", key, e);
+            } finally {
+                active.decrementAndGet();
+                pending.remove(key);
+                long cost = System.currentTimeMillis() - begin;
+                totalMillis.add(cost);
+                maxMillis.accumulateAndGet(cost, Math::max);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Loads a whole table into redis as logical expire keys, e.g. after a redis failover.
+ * Rows are read in keyset pages; while one page is encoded and written with a pipeline, the next
+ * one is already being read from mysql.
+ */
+@Slf4j
+@Component
+public class CacheWarmer {
+    private static final ExecutorService WARM_UP_EXECUTOR = Executors.newSingleThreadExecutor();
+    //    separate from WARM_UP_EXECUTOR, a warm up waits for its writes and must not wait on itself
+    private static final ExecutorService WRITE_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final int LOG_EVERY_BATCHES = 20;
+
+    @Resource
+    private RedisUtils redisUtils;
+
+    @Value("${cache.warm-up.batch-size:1000}")
+    private int batchSize;
+
+    //    spread the logical expire times so the warmed keys are not rebuilt all at once
+    @Value("${cache.warm-up.jitter-seconds:600}")
+    private long jitterSeconds;
+
+    /**
+     * @param rowsAfter (lastId, limit) -> the next rows ordered by id
+     * @return number of keys written
+     */
+    public <T> CompletableFuture<Long> warmUpAsync(String keyPrefix, BiFunction<Long, Integer, List<T>> rowsAfter,
+                                                 Function<T, Long> idOf, Long expire, TimeUnit timeUnit) {
+        return CompletableFuture.supplyAsync(() -> warmUp(keyPrefix, rowsAfter, idOf, expire, timeUnit), WARM_UP_EXECUTOR);
+    }
+
+    public <T> long warmUp(String keyPrefix, BiFunction<Long, Integer, List<T>> rowsAfter,
+                           Function<T, Long> idOf, Long expire, TimeUnit timeUnit) {
+        long begin = System.currentTimeMillis();
+        long count = 0;
+        int batches = 0;
+        long lastId = 0;
+        CompletableFuture<Void> writing = CompletableFuture.completedFuture(null);
+        while (true) {
+            long readBegin = System.currentTimeMillis();
+            List<T> rows = rowsAfter.apply(lastId, batchSize);
+            if (rows.isEmpty()) break;
+//            the share of one row in the page read stands in for the rebuild cost of one key,
+//            without a cost early refresh never fires for warmed keys
+            long rebuildCost = Math.max(1, (System.currentTimeMillis() - readBegin) / rows.size());
+//            at most one page is written while the next is read
+            writing.join();
+            writing = CompletableFuture.runAsync(() -> redisUtils.saveAllAndSetLogicalExpire(
+                    keyPrefix, rows, idOf, expire, timeUnit, jitterSeconds, rebuildCost), WRITE_EXECUTOR);
+            count += rows.size();
+            lastId = idOf.apply(rows.get(rows.size() - 1));
+            if (++batches % LOG_EVERY_BATCHES == 0) log.info("warming up {}: {} keys, {} keys/s", keyPrefix, count, rate(count, begin));
+            if (rows.size() < batchSize) break;
+        }
+        writing.join();
+        log.info("warmed up {}: {} keys in {} ms, {} keys/s", keyPrefix, count, System.currentTimeMillis() - begin, rate(count, begin));
+        return count;
+    }
+
+    private long rate(long count, long begin) {
+        return count * 1000 / Math.max(System.currentTimeMillis() - begin, 1);
+    }
+}
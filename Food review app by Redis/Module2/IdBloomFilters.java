@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+
+/**
+ * Bloom filters of existing ids, one per cache key prefix, to stop lookups of ids that were never
+ * inserted before they reach redis or mysql. Used instead of caching an empty string for every
+ * random id a scraper asks for.
+ */
+@Slf4j
+@Component
+public class IdBloomFilters implements MessageListener {
+    private static final String BLOOM_KEY_PREFIX = "bloom:";
+    private static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    private static final int BUILD_BATCH_SIZE = 1000;
+    private static final ExecutorService BLOOM_BUILD_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //    local: a bitset in this JVM, for a single node only. The other nodes learn new ids through pub/sub,
+    //    which drops messages while a node is disconnected and leaves it rejecting ids that exist.
+    //    redis: one bitmap shared by every node, use it whenever more than one node runs
+    @Value("${bloom.mode:local}")
+    private String mode;
+
+    @Value("${bloom.fpp:0.01}")
+    private double fpp;
+
+    //    room for new rows before the false positive rate gets worse than fpp
+    @Value("${bloom.headroom:2.0}")
+    private double headroom;
+
+    private final Map<String, BloomFilter> filters = new ConcurrentHashMap<>();
+    //    until a filter is fully built it must not reject anything
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        if (isLocal()) redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(BLOOM_ADD_CHANNEL));
+    }
+
+    /**
+     * Create the filter of keyPrefix and fill it in the background.
+     *
+     * @param rows     current number of rows, the filter is sized from it
+     * @param idsAfter (lastId, limit) -> the next ids in ascending order, for keyset pagination
+     */
+    public void build(String keyPrefix, long rows, BiFunction<Long, Integer, List<Long>> idsAfter) {
+        long expected = (long) (rows * headroom);
+        BloomFilter filter = isLocal()
+                ? BloomFilter.local(expected, fpp)
+                : BloomFilter.redis(stringRedisTemplate, BLOOM_KEY_PREFIX + keyPrefix, expected, fpp);
+        filters.put(keyPrefix, filter);
+        BLOOM_BUILD_EXECUTOR.submit(() -> {
+            try {
+                long lastId = 0;
+                long count = 0;
+                while (true) {
+                    List<Long> ids = idsAfter.apply(lastId, BUILD_BATCH_SIZE);
+                    for (Long id : ids) filter.put(id);
+                    count += ids.size();
+                    if (ids.size() < BUILD_BATCH_SIZE) break;
+                    lastId = ids.get(ids.size() - 1);
+                }
+                ready.add(keyPrefix);
+                log.info("bloom filter of {} built with {} ids", keyPrefix, count);
+            } catch (Exception e) {
+                log.error("failed to build bloom filter of " + keyPrefix, e);
+            }
+        });
+    }
+
+    /**
+     * false only if the id surely does not exist
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        BloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !ready.contains(keyPrefix)) return true;
+        return filter.mightContain(id);
+    }
+
+    /**
+     * must be called after every insert, otherwise the new row is taken as nonexistent
+     */
+    public void put(String keyPrefix, Object id) {
+        BloomFilter filter = filters.get(keyPrefix);
+        if (filter == null) return;
+        filter.put(id);
+//        the other nodes have their own bits in local mode
+        if (isLocal()) stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, keyPrefix + "|" + id);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.lastIndexOf('|');
+        BloomFilter filter = filters.get(body.substring(0, split));
+        if (filter != null) filter.put(body.substring(split + 1));
+    }
+
+    private boolean isLocal() {
+        return !"redis".equals(mode);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * L1 cache in front of redis. It keeps the already deserialized RedisData so a hit costs
+ * neither a round trip nor a json parse. Entries are evicted by LRU when the capacity is
+ * reached and by a short TTL, and every node drops a key as soon as anyone deletes it in redis.
+ */
+@Slf4j
+@Component
+public class NearCache implements MessageListener {
+    private static final String INVALIDATE_CHANNEL = "cache:invalidate";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${cache.near.capacity:10000}")
+    private int capacity;
+
+    @Value("${cache.near.ttl-seconds:30}")
+    private long ttlSeconds;
+
+    private LRUCache<String, RedisData> cache;
+
+    @PostConstruct
+    private void init() {
+        cache = CacheUtil.newLRUCache(capacity, ttlSeconds * 1000);
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    public RedisData get(String key) {
+        return cache.get(key, false);
+    }
+
+    public void put(String key, RedisData redisData) {
+        cache.put(key, redisData);
+    }
+
+    /**
+     * drop the key here and tell the other nodes to do the same
+     */
+    public void invalidate(String key) {
+        cache.remove(key);
+        stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        cache.remove(key);
+        log.debug("near cache invalidated {}", key);
+    }
+}
@@ -1,18 +1,20 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.IdBloomFilters;
 import com.hmdp.utils.RedisUtils;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -21,11 +23,10 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -38,6 +39,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author lik
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
     @Resource
@@ -46,7 +48,29 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private RedisUtils redisUtils;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Value("${cache.warm-up.on-startup:false}")
+    private boolean warmUpOnStartup;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        idBloomFilters.build(CACHE_SHOP_KEY, count(), (lastId, limit) -> listObjs(
+                new QueryWrapper<Shop>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + limit),
+                id -> ((Number) id).longValue()));
+    }
+
+    @Override
+    public boolean save(Shop shop) {
+        boolean success = super.save(shop);
+//        a new shop must pass the bloom filter, or it would be taken as nonexistent
+        if (success) idBloomFilters.put(CACHE_SHOP_KEY, shop.getId());
+        return success;
+    }
 
     @Override
     public Result queryById(Long id) {
@@ -65,93 +89,35 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         and add @Transactional and because I'm doing a single project thus it can guarantee
         its atomicity. If we are using disturbed system, better to use TCC.
          */
-        stringRedisTemplate.delete(key);
+        redisUtils.delete(key);
     }
 
     @Override
     public Result queryByHotId(Long id) {
-        //        search in redis
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-        //        return if exist
-        if (StrUtil.isNotBlank(shopJson)) return Result.ok(JSONUtil.toBean(shopJson,Shop.class));
-        //        if the nonexistent shop
-        if (Objects.equals(shopJson, "")) return Result.fail("Shop not exist");
-//        lock the hotId from searching it from database
-        Shop shop;
-        try{// you may add an 'if' to judge if the returned shop is null
-            if(!tryLock(LOCK_SHOP_KEY+id)){
-                Thread.sleep(50);
-                return queryByHotId(id);// return is important
-            }
-            //        search in database
-            shop = getById(id);
-            // Simulate query is slow
-            Thread.sleep(200);
-            //        return false if not exist
-            if (shop==null){
-//            prevent Cache penetration
-                stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return Result.fail("Shop not exist");
-            }
-            //        write in redis and return
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(shop),
-                    CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            freeLock(LOCK_SHOP_KEY+id);
-        }
+//        lock the hotId from searching it from database, concurrent misses on this node share
+//        a single load and only that one competes for the redis lock with the other nodes
+        Shop shop = redisUtils.queryWithMutex(Shop.class,CACHE_SHOP_KEY,id,this::getById,
+                CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        if(shop==null) return Result.fail("Shop not exist");
         return Result.ok(shop);
     }
 
     @Override
     public Result queryByHotIdPlus(Long id) {
 //         Using the logical expiration time and thread pool on the basis of Mutex method.
-//         search in redis
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
+        Shop shop = redisUtils.queryByHotIdPlus(Shop.class,CACHE_SHOP_KEY,id,this::getById,
+                CACHE_SHOP_TTL,TimeUnit.MINUTES);
 //        In theory, It's impossible for the non-existent situation because we need to set the
 //        logical expiration time for all hot shop id.
-        if(StrUtil.isBlank(shopJson)) return Result.fail("Hot shop not exist");
-//        deserialize Json to Object
-        RedisData redisData = JSONUtil.toBean(shopJson,RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(),Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-//        Determine whether it has expired
-        if(expireTime.isAfter(LocalDateTime.now())) return Result.ok(shop);
-//        get mutex
-        if(tryLock(LOCK_SHOP_KEY+id)) {
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try{
-                    warmUpHotId2Redis(id,LOCK_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    freeLock(LOCK_SHOP_KEY+id);
-                }
-            });
-        }
+        if(shop==null) return Result.fail("Hot shop not exist");
         return Result.ok(shop);
     }
 
     @Override
     public Result queryByNormalId(Long id) {
-        //        search in redis
-        String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-//        return if exist
-        if (StrUtil.isNotBlank(shopJson)) return Result.ok(JSONUtil.toBean(shopJson,Shop.class));
-//        if the nonexistent shop
-        if (Objects.equals(shopJson, "")) return Result.fail("How many times should I told you the shop is not exist?");
-//        search in database
-        Shop shop = getById(id);
-//        return false if not exist
-        if (shop==null){
-//            prevent Cache penetration
-            stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return Result.fail("Shop not exist");
-        }
-//        write in redis and return
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(shop),
-                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        Shop shop = redisUtils.queryByNormalId(Shop.class,CACHE_SHOP_KEY,id,this::getById,
+                CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        if(shop==null) return Result.fail("Shop not exist");
         return Result.ok(shop);
     }
 
@@ -186,27 +152,38 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr,distance);
         });
-        String idStr = StrUtil.join(",",ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        List<Shop> shops = redisUtils.queryByIds(Shop.class,CACHE_SHOP_KEY,ids,Shop::getId,this::listByIds,
+                CACHE_SHOP_TTL,TimeUnit.MINUTES);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
         return Result.ok(shops);
     }
 
-    private void freeLock(String key) {stringRedisTemplate.delete(key);}
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        if (!warmUpOnStartup) return;
+        warmUpAll2Redis(CACHE_SHOP_TTL, TimeUnit.MINUTES).whenComplete((count, e) -> {
+            if (e != null) log.error("warming up shops on startup failed", e);
+            else log.info("warmed up {} shops on startup", count);
+        });
+    }
 
-    private Boolean tryLock(String key){
-        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(key, "locked", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-//        if directly return locked, it may occur NullPointer because of Unboxing
-        return BooleanUtil.isTrue(locked);
+    /**
+     * save all the shop info into redis, in keyset pages with pipelined writes,
+     * also used to refill redis after a failover
+     */
+    public CompletableFuture<Long> warmUpAll2Redis(Long ttl, TimeUnit timeUnit) {
+        return cacheWarmer.warmUpAsync(CACHE_SHOP_KEY,
+                (lastId, limit) -> query().gt("id", lastId).orderByAsc("id").last("limit " + limit).list(),
+                Shop::getId, ttl, timeUnit);
     }
+
     public void warmUpHotId2Redis(Long id, Long ttl) throws InterruptedException {
+        long begin = System.currentTimeMillis();
         Shop shop = getById(id);
         Thread.sleep(200);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(ttl));
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        redisUtils.saveAndSetLogicalExpire(CACHE_SHOP_KEY+id,shop,ttl,TimeUnit.SECONDS,
+                System.currentTimeMillis()-begin);
     }
 }
@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+/**
+ * How RedisUtils turns cached entities into redis strings and back.
+ * The logical expire time is part of the codec so it can be stored wherever reading it is cheapest.
+ */
+public interface CacheCodec {
+    /**
+     * @param redisData its expireTime is null for keys that expire by a real TTL
+     */
+    String encode(RedisData redisData);
+
+    /**
+     * whether the value was written by this codec, used to read old values during a rollout
+     */
+    boolean accepts(String raw);
+
+    /**
+     * @return RedisData whose data is already an instance of type
+     */
+    RedisData decode(String raw, Class<?> type);
+}
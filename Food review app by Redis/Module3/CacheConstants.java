@@ -0,0 +1,12 @@
+package com.hmdp.utils;
+
+/**
+ * Keys of the entity caches that RedisUtils fills, next to the ones in RedisConstants.
+ * Every class reading or invalidating one of these caches takes the key from here.
+ */
+public class CacheConstants {
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * A fixed width header followed by the bare json of the value:
+ * <pre>
+ *   0x01 | version (1 char) | logical expire time in epoch millis (16 hex chars, 0 = none)
+ *        | rebuild cost in millis (8 hex chars, since version 2) | json
+ * </pre>
+ * The expire time is read with a substring instead of a json parse, and the value is parsed
+ * once straight into the target type. The header stays ascii because the values go through
+ * StringRedisTemplate, which would mangle raw bytes.
+ * <p>
+ * A node only reads the versions it knows, so a new version is rolled out in two steps: first
+ * every node is upgraded while still writing the old version, then the written version is raised.
+ */
+public class CompactCacheCodec implements CacheCodec {
+    private static final char MAGIC = '\u0001';
+    private static final char VERSION_1 = '1';
+    private static final char VERSION = '2';
+    private static final int EXPIRE_OFFSET = 2;
+    private static final int COST_OFFSET = EXPIRE_OFFSET + 16;
+    private static final int HEADER_LENGTH_1 = COST_OFFSET;
+    private static final int HEADER_LENGTH = COST_OFFSET + 8;
+
+    private final char writeVersion;
+
+    public CompactCacheCodec() {
+        this(VERSION);
+    }
+
+    /**
+     * @param writeVersion '1' or '2', both are always read
+     */
+    public CompactCacheCodec(char writeVersion) {
+        if (writeVersion != VERSION && writeVersion != VERSION_1) {
+            throw new IllegalArgumentException("unknown compact cache codec version " + writeVersion);
+        }
+        this.writeVersion = writeVersion;
+    }
+
+    @Override
+    public String encode(RedisData redisData) {
+        LocalDateTime expireTime = redisData.getExpireTime();
+        long millis = expireTime == null ? 0 : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long cost = redisData.getRebuildCost() == null ? 0 : Math.min(redisData.getRebuildCost(), 0xFFFFFFFFL);
+        String json = JSONUtil.toJsonStr(redisData.getData());
+        StringBuilder sb = new StringBuilder(HEADER_LENGTH + json.length());
+        sb.append(MAGIC).append(writeVersion);
+        appendHex(sb, millis, 16);
+        if (writeVersion == VERSION) appendHex(sb, cost, 8);
+        return sb.append(json).toString();
+    }
+
+    @Override
+    public boolean accepts(String raw) {
+        if (raw.isEmpty() || raw.charAt(0) != MAGIC) return false;
+        return raw.length() >= headerLength(raw);
+    }
+
+    @Override
+    public RedisData decode(String raw, Class<?> type) {
+        RedisData redisData = new RedisData();
+        redisData.setData(JSONUtil.toBean(raw.substring(headerLength(raw)), type));
+        redisData.setExpireTime(readExpireTime(raw));
+        if (raw.charAt(1) == VERSION) redisData.setRebuildCost(Long.parseLong(raw.substring(COST_OFFSET, HEADER_LENGTH), 16));
+        return redisData;
+    }
+
+    private LocalDateTime readExpireTime(String raw) {
+        long millis = Long.parseUnsignedLong(raw.substring(EXPIRE_OFFSET, COST_OFFSET), 16);
+        if (millis == 0) return null;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
+    //    version 1 values have no rebuild cost, keep reading them
+    private int headerLength(String raw) {
+        if (raw.length() < 2) return Integer.MAX_VALUE;
+        if (raw.charAt(1) == VERSION) return HEADER_LENGTH;
+        if (raw.charAt(1) == VERSION_1) return HEADER_LENGTH_1;
+        return Integer.MAX_VALUE;
+    }
+
+    private void appendHex(StringBuilder sb, long value, int width) {
+        String hex = Long.toHexString(value);
+        for (int i = hex.length(); i < width; i++) sb.append('0');
+        sb.append(hex);
+    }
+}
@@ -0,0 +1,10 @@
+package com.hmdp.utils;
+
+public interface ILock {
+    /**
+     * try once, the lock expires after timeoutSec
+     */
+    boolean tryLock(long timeoutSec);
+
+    void unlock();
+}
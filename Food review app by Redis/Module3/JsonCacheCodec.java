@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+/**
+ * The original format: plain json for keys with a TTL, json of RedisData for logical expiration.
+ * Reading a logical expire value parses twice, first into RedisData then the nested data.
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public String encode(RedisData redisData) {
+        if (redisData.getExpireTime() == null) return JSONUtil.toJsonStr(redisData.getData());
+        return JSONUtil.toJsonStr(redisData);
+    }
+
+    @Override
+    public boolean accepts(String raw) {
+        return raw.startsWith("{");
+    }
+
+    @Override
+    public RedisData decode(String raw, Class<?> type) {
+        JSONObject jsonObject = JSONUtil.parseObj(raw);
+        RedisData redisData = new RedisData();
+//        the same key may have been written with or without a logical expire time
+        if (isRedisData(jsonObject)) {
+            RedisData wrapped = jsonObject.toBean(RedisData.class);
+            redisData.setData(((JSONObject) wrapped.getData()).toBean(type));
+            redisData.setExpireTime(wrapped.getExpireTime());
+            redisData.setRebuildCost(wrapped.getRebuildCost());
+        } else {
+            redisData.setData(jsonObject.toBean(type));
+        }
+        return redisData;
+    }
+
+    private boolean isRedisData(JSONObject jsonObject) {
+        return jsonObject.containsKey("expireTime") && jsonObject.containsKey("data");
+    }
+}
@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class RedisData {
+    private LocalDateTime expireTime;
+    private Object data;
+    //    milliseconds the last rebuild took, used to refresh hot keys a bit before they expire
+    private Long rebuildCost;
+}
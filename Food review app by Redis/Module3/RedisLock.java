@@ -2,9 +2,7 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 import lombok.AllArgsConstructor;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -18,12 +16,6 @@ public class RedisLock implements ILock{
     private String name;
     //    for determine if the threadId when unlock
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
 
     @Override
     public boolean tryLock(long timeoutSec) {
@@ -35,7 +27,7 @@ public class RedisLock implements ILock{
 //    using lua script to promise atomic
     @Override
     public void unlock() {
-        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(KEY_PREFIX + name),
+        RedisScripts.execute(stringRedisTemplate, RedisScripts.UNLOCK, Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
     }
 
@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out {@link ReentrantRedisLock}s and does the work they share: the lua scripts, the watchdog that
+ * renews leases every lock.watchdog.lease-millis / 3, and one pub/sub listener that wakes up the waiters.
+ */
+@Slf4j
+@Component
+public class RedisLockClient implements MessageListener {
+    private static final String UNLOCK_CHANNEL = "lock:unlock";
+    //    one id per node, the thread id makes the owner
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${lock.watchdog.lease-millis:30000}")
+    private long watchdogLeaseMillis;
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    //    lock key + owner -> renewal task
+    private final Map<String, ScheduledFuture<?>> renewals = new ConcurrentHashMap<>();
+    //    lock key -> monitor the waiters sleep on, removed with the last waiter
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * counts the unlocks of one key, a waiter sleeps until the count moves past what it saw
+     * before its last try, so an unlock between the try and the wait is not missed
+     */
+    static class Waiter {
+        //    threads waiting, changed only inside waiters.compute
+        private int count;
+        private long unlocks;
+
+        synchronized long unlocks() {
+            return unlocks;
+        }
+
+        synchronized void signal() {
+            unlocks++;
+            notifyAll();
+        }
+
+        synchronized void await(long seen, long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            while (unlocks == seen) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return;
+                wait(left);
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(UNLOCK_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    public ReentrantRedisLock getLock(String name) {
+        return new ReentrantRedisLock(this, name);
+    }
+
+    /**
+     * @param leaseMillis -1 to let the watchdog keep the lock
+     * @return null if locked, else the ttl of the lock held by someone else
+     */
+    Long acquire(String key, long leaseMillis) {
+        String owner = owner();
+        long lease = leaseMillis > 0 ? leaseMillis : watchdogLeaseMillis;
+        Long ttl = RedisScripts.execute(stringRedisTemplate, RedisScripts.REENTRANT_LOCK, Collections.singletonList(key), owner, String.valueOf(lease));
+        if (ttl == null && leaseMillis <= 0) {
+            renewals.computeIfAbsent(key + ":" + owner, k -> watchdog.scheduleWithFixedDelay(
+                    () -> renew(key, owner), lease / 3, lease / 3, TimeUnit.MILLISECONDS));
+        }
+        return ttl;
+    }
+
+    void release(String key) {
+        String owner = owner();
+        Long result = RedisScripts.execute(stringRedisTemplate, RedisScripts.REENTRANT_UNLOCK, Collections.singletonList(key),
+                owner, String.valueOf(watchdogLeaseMillis), UNLOCK_CHANNEL);
+        if (result == null) {
+            cancelRenewal(key, owner);
+            throw new IllegalMonitorStateException("lock " + key + " is not held by " + owner);
+        }
+        if (result == 1) cancelRenewal(key, owner);
+    }
+
+    Waiter subscribe(String key) {
+        return waiters.compute(key, (k, w) -> {
+            if (w == null) w = new Waiter();
+            w.count++;
+            return w;
+        });
+    }
+
+    void unsubscribe(String key, Waiter waiter) {
+        waiters.computeIfPresent(key, (k, w) -> w == waiter && --w.count == 0 ? null : w);
+    }
+
+    private void renew(String key, String owner) {
+        try {
+            Long renewed = RedisScripts.execute(stringRedisTemplate, RedisScripts.REENTRANT_RENEW, Collections.singletonList(key),
+                    owner, String.valueOf(watchdogLeaseMillis));
+            if (renewed == null || renewed == 0) cancelRenewal(key, owner);
+        } catch (Exception e) {
+//            keep trying, the lease is still good for a while
+            log.warn("renew lock {} failed", key, e);
+        }
+    }
+
+    private void cancelRenewal(String key, String owner) {
+        ScheduledFuture<?> renewal = renewals.remove(key + ":" + owner);
+        if (renewal != null) renewal.cancel(false);
+    }
+
+    private String owner() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        Waiter waiter = waiters.get(key);
+        if (waiter != null) waiter.signal();
+    }
+}
@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SCRIPT LOAD every script of {@link RedisScripts} once the app is up, so the first calls do not pay for
+ * a NOSCRIPT and a full EVAL. A redis restart flushes them again; EVALSHA then falls back by itself.
+ * The calls and latency of every script are logged each redis.scripts.stats-log-seconds.
+ */
+@Slf4j
+@Component
+public class RedisScriptPreloader {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //    0 turns the stats log off
+    @Value("${redis.scripts.stats-log-seconds:60}")
+    private long statsLogSeconds;
+
+    private ScheduledExecutorService statsExecutor;
+    private long lastLoggedCalls = -1;
+
+    @PostConstruct
+    private void init() {
+        if (statsLogSeconds <= 0) return;
+        statsExecutor = Executors.newSingleThreadScheduledExecutor();
+        statsExecutor.scheduleWithFixedDelay(this::logStats, statsLogSeconds, statsLogSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (statsExecutor != null) statsExecutor.shutdownNow();
+    }
+
+    /**
+     * only when some script ran since the last time
+     */
+    @SuppressWarnings("unchecked")
+    private void logStats() {
+        Map<String, Object> stats = RedisScripts.getStats();
+        long calls = stats.values().stream().mapToLong(one -> (Long) ((Map<String, Object>) one).get("calls")).sum();
+        if (calls == lastLoggedCalls) return;
+        lastLoggedCalls = calls;
+        log.info("lua script stats {}", stats);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void preload() {
+        for (DefaultRedisScript<Long> script : RedisScripts.all()) {
+            try {
+                String sha = stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptingCommands()
+                        .scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+                if (!script.getSha1().equals(sha)) {
+                    log.warn("script {} loaded as {} but is called as {}", RedisScripts.nameOf(script), sha, script.getSha1());
+                }
+            } catch (Exception e) {
+                log.warn("preload script {} failed", RedisScripts.nameOf(script), e);
+            }
+        }
+        log.info("{} lua scripts loaded", RedisScripts.all().size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every lua script of the app, defined once. {@link RedisScriptPreloader} loads them all at startup, and
+ * calls through {@link #execute} are counted and timed per script.
+ * <p>
+ * StringRedisTemplate already sends a DefaultRedisScript as EVALSHA and falls back to EVAL on NOSCRIPT,
+ * so after the preload only the sha goes over the wire.
+ */
+public final class RedisScripts {
+    private static final Map<DefaultRedisScript<Long>, Stats> REGISTRY = new LinkedHashMap<>();
+
+    public static final DefaultRedisScript<Long> UNLOCK = define("unlock.lua");
+    public static final DefaultRedisScript<Long> SECKILL = define("seckill-stream.lua");
+    public static final DefaultRedisScript<Long> SECKILL_SEGMENT_CLAIM = define("seckill-segment-claim.lua");
+    public static final DefaultRedisScript<Long> SECKILL_SEGMENT_TAKE = define("seckill-segment-take.lua");
+    public static final DefaultRedisScript<Long> REENTRANT_LOCK = define("reentrant-lock.lua");
+    public static final DefaultRedisScript<Long> REENTRANT_UNLOCK = define("reentrant-unlock.lua");
+    public static final DefaultRedisScript<Long> REENTRANT_RENEW = define("reentrant-renew.lua");
+    public static final DefaultRedisScript<Long> LIKE_TOGGLE = define("like-toggle.lua");
+
+    private RedisScripts() {
+    }
+
+    private static class Stats {
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        private Stats(String name) {
+            this.name = name;
+        }
+    }
+
+    private static DefaultRedisScript<Long> define(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        REGISTRY.put(script, new Stats(location));
+        return script;
+    }
+
+    public static Collection<DefaultRedisScript<Long>> all() {
+        return REGISTRY.keySet();
+    }
+
+    public static String nameOf(DefaultRedisScript<Long> script) {
+        return REGISTRY.get(script).name;
+    }
+
+    public static Long execute(StringRedisTemplate stringRedisTemplate, DefaultRedisScript<Long> script,
+                               List<String> keys, Object... args) {
+        Stats stats = REGISTRY.get(script);
+        long begin = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute(script, keys, args);
+        } catch (RuntimeException e) {
+            stats.errors.increment();
+            throw e;
+        } finally {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin);
+            stats.calls.increment();
+            stats.totalMicros.add(micros);
+            stats.maxMicros.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    /**
+     * calls, errors and latency of each script, as seen by the client
+     */
+    public static Map<String, Object> getStats() {
+        Map<String, Object> all = new LinkedHashMap<>();
+        for (Stats stats : REGISTRY.values()) {
+            Map<String, Object> one = new LinkedHashMap<>();
+            long calls = stats.calls.sum();
+            one.put("calls", calls);
+            one.put("errors", stats.errors.sum());
+            one.put("avgMicros", calls == 0 ? 0 : stats.totalMicros.sum() / calls);
+            one.put("maxMicros", stats.maxMicros.get());
+            all.put(stats.name, one);
+        }
+        return all;
+    }
+}
@@ -2,21 +2,36 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.Result;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -24,28 +39,102 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class RedisUtils {
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+
+    //    keeps values written before the codec switch readable
+    private static final CacheCodec JSON_CODEC = new JsonCacheCodec();
+
+    //    loads running on this node, the other threads missing the same key wait for them
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    //    threads waiting for another node to finish loading a key
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loaded = new ConcurrentHashMap<>();
 
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    NearCache nearCache;
+
+    @Resource
+    IdBloomFilters idBloomFilters;
+
+    @Resource
+    CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    RedisMessageListenerContainer redisMessageListenerContainer;
+
+    //    switch to compact only once every node can read it, older nodes can't parse its values
+    @Value("${cache.codec:json}")
+    private String codecName;
+
+    //    compact format version written, keep 1 until every node reads 2, only 2 carries the rebuild cost
+    @Value("${cache.compact-version:1}")
+    private char compactVersion;
+
+    //    > 0 turns on early refresh of logical expire keys, 1 is the usual choice, larger refreshes earlier
+    @Value("${cache.early-refresh.beta:0}")
+    private double earlyRefreshBeta;
+
+    private CacheCodec cacheCodec;
+
+    /**
+     * a CacheCodec bean, if there is one, replaces the configured codec
+     */
+    @Autowired(required = false)
+    public void setCacheCodec(CacheCodec cacheCodec) {
+        this.cacheCodec = cacheCodec;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (cacheCodec == null) cacheCodec = "compact".equals(codecName) ? new CompactCacheCodec(compactVersion) : JSON_CODEC;
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiting = loaded.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiting != null) waiting.complete(null);
+        }, new ChannelTopic(CACHE_LOADED_CHANNEL));
+    }
+
     public void saveAndSetExpire(String key, Object object, Long expire, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(object),expire,timeUnit);
+        stringRedisTemplate.opsForValue().set(key, cacheCodec.encode(toRedisData(object, null)),expire,timeUnit);
     }
 
     public void saveAndSetLogicalExpire(String key, Object object, Long expire, TimeUnit timeUnit){
-        RedisData redisData = new RedisData();
-        redisData.setData(object);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(expire)));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        saveAndSetLogicalExpire(key, object, expire, timeUnit, null);
+    }
+
+    /**
+     * @param rebuildCost milliseconds it took to load object, null if unknown
+     */
+    public void saveAndSetLogicalExpire(String key, Object object, Long expire, TimeUnit timeUnit, Long rebuildCost){
+        RedisData redisData = toRedisData(object, LocalDateTime.now().plusSeconds(timeUnit.toSeconds(expire)));
+        redisData.setRebuildCost(rebuildCost);
+        stringRedisTemplate.opsForValue().set(key,cacheCodec.encode(redisData));
+    }
+
+    /**
+     * the empty string marks an id that does not exist, it is never encoded
+     */
+    private void saveNull(String key) {
+        stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
     }
 
     public <R,ID> R queryByNormalId(Class<R> type, String keyPrefix, ID id, Function<ID,R> db, Long expire, TimeUnit timeUnit) {
+//        prevent Cache penetration, an id the bloom filter has never seen does not exist
+        if (!idBloomFilters.mightContain(keyPrefix, id)) return null;
         String key = keyPrefix+id;
+//        search in local cache first
+        RedisData local = nearCache.get(key);
+        if (local != null) return type.cast(local.getData());
         //        search in redis
         String json = stringRedisTemplate.opsForValue().get(key);
 //        return if exist
-        if (StrUtil.isNotBlank(json)) return JSONUtil.toBean(json,type);
+        if (StrUtil.isNotBlank(json)) {
+            RedisData redisData = decode(json,type);
+            nearCache.put(key, redisData);
+            return type.cast(redisData.getData());
+        }
 //        if the nonexistent shop
         if (Objects.equals(json, "")) return null;
 //        search in database
@@ -53,44 +142,225 @@ public class RedisUtils {
 //        return false if not exist
         if (r==null){
 //            prevent Cache penetration
-            saveAndSetExpire(CACHE_SHOP_KEY+id,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+            saveNull(key);
             return null;
         }
 //        write in redis and return
         saveAndSetExpire(key,r,expire,timeUnit);
+        nearCache.put(key, toRedisData(r, null));
         return r;
     }
 
     public <R,ID> R queryByHotIdPlus(Class<R> type, String keyPrefix, ID id, Function<ID,R> db, Long expire, TimeUnit timeUnit){
         String key = keyPrefix+id;
 //         Using the logical expiration time and thread pool on the basis of Mutex method.
+//         search in local cache, it holds the already deserialized data
+        RedisData redisData = nearCache.get(key);
+        if (redisData == null) {
 //         search in redis
-        String json = stringRedisTemplate.opsForValue().get(key);
+            String json = stringRedisTemplate.opsForValue().get(key);
 //        In theory, It's impossible for the non-existent situation because we need to set the
 //        logical expiration time for all hot shop id.
-        if(StrUtil.isBlank(json)) return null;
+            if(StrUtil.isBlank(json)) return null;
 //        deserialize Json to Object
-        RedisData redisData = JSONUtil.toBean(json,RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(),type);
+            redisData = decode(json,type);
+            nearCache.put(key, redisData);
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
-//        Determine whether it has expired
-        if(expireTime.isAfter(LocalDateTime.now())) return r;
+//        Determine whether it has expired, a value written with a real TTL has no logical expire time
+        if(expireTime==null) return r;
+        if(expireTime.isAfter(LocalDateTime.now()) && !shouldRefreshEarly(redisData)) return r;
 //        get mutex
         if(tryLock(LOCK_SHOP_KEY+id)) {
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            cacheRebuildExecutor.submit(key, ()->{
                 try{
+                    long begin = System.currentTimeMillis();
                     R new_r = db.apply(id);
-                    saveAndSetLogicalExpire(key,new_r,expire,timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    saveAndSetLogicalExpire(key,new_r,expire,timeUnit,System.currentTimeMillis()-begin);
+//                    the other nodes still keep the old value in their local cache
+                    nearCache.invalidate(key);
                 }finally {
                     freeLock(LOCK_SHOP_KEY+id);
                 }
-            });
+            }, ()->freeLock(LOCK_SHOP_KEY+id));
         }
         return r;
     }
 
+    /**
+     * Write many logical expire keys with one pipeline, the values are encoded in parallel first.
+     *
+     * @param jitterSeconds a random 0..jitterSeconds is added to each expire time
+     * @param rebuildCost   milliseconds to load one object, null if unknown
+     */
+    public <R> void saveAllAndSetLogicalExpire(String keyPrefix, List<R> objects, Function<R,Long> idOf,
+                                               Long expire, TimeUnit timeUnit, long jitterSeconds, Long rebuildCost) {
+        LocalDateTime now = LocalDateTime.now();
+        List<String> values = objects.parallelStream().map(object -> {
+            long jitter = jitterSeconds > 0 ? ThreadLocalRandom.current().nextLong(jitterSeconds + 1) : 0;
+            RedisData redisData = toRedisData(object, now.plusSeconds(timeUnit.toSeconds(expire) + jitter));
+            redisData.setRebuildCost(rebuildCost);
+            return cacheCodec.encode(redisData);
+        }).collect(Collectors.toList());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < objects.size(); i++) conn.set(keyPrefix + idOf.apply(objects.get(i)), values.get(i));
+            return null;
+        });
+    }
+
+    /**
+     * XFetch: refresh when now - cost * beta * ln(random) passes the expire time. The chance grows
+     * as the deadline gets closer and with the time the rebuild takes, so the rebuilds of many keys
+     * are spread out before they expire instead of all starting when they do.
+     */
+    private boolean shouldRefreshEarly(RedisData redisData) {
+        Long cost = redisData.getRebuildCost();
+        if (earlyRefreshBeta <= 0 || cost == null || cost <= 0) return false;
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        double gap = -cost * earlyRefreshBeta * Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireMillis;
+    }
+
+    /**
+     * Solve Cache Breakdown by using MuteX, but only one thread per node asks for the redis lock.
+     * The other threads missing the same key wait on its future, and the node losing the redis
+     * lock waits for the winner to announce the key is loaded instead of sleeping and retrying.
+     */
+    public <R,ID> R queryWithMutex(Class<R> type, String keyPrefix, ID id, Function<ID,R> db, Long expire, TimeUnit timeUnit) {
+        if (!idBloomFilters.mightContain(keyPrefix, id)) return null;
+        String key = keyPrefix+id;
+//        search in redis
+        String json = stringRedisTemplate.opsForValue().get(key);
+//        return if exist
+        if (StrUtil.isNotBlank(json)) return type.cast(decode(json,type).getData());
+//        if the nonexistent shop
+        if (Objects.equals(json, "")) return null;
+//        single flight, the first thread loads and the others join it
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return type.cast(running.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            R r = loadWithMutex(type, key, LOCK_SHOP_KEY+id, id, db, expire, timeUnit);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private <R,ID> R loadWithMutex(Class<R> type, String key, String lockKey, ID id, Function<ID,R> db, Long expire, TimeUnit timeUnit) {
+        while (true) {
+//            register before reading redis again, so a notification sent in between is not missed
+            CompletableFuture<Void> waiting = loaded.computeIfAbsent(key, k -> new CompletableFuture<>());
+            try {
+                String json = stringRedisTemplate.opsForValue().get(key);
+                if (StrUtil.isNotBlank(json)) return type.cast(decode(json,type).getData());
+                if (Objects.equals(json, "")) return null;
+                if (tryLock(lockKey)) {
+                    try {
+                        R r = db.apply(id);
+                        if (r == null) {
+//                            prevent Cache penetration
+                            saveNull(key);
+                            return null;
+                        }
+                        saveAndSetExpire(key, r, expire, timeUnit);
+                        return r;
+                    } finally {
+                        freeLock(lockKey);
+                        stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+                    }
+                }
+//                another node is loading it, the lock TTL bounds the wait if its notification is lost
+                waiting.get(LOCK_SHOP_TTL, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                log.debug("no loaded notification for {}, read again", key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            } finally {
+                loaded.remove(key, waiting);
+            }
+        }
+    }
+
+    /**
+     * Batch version of queryByNormalId: one MGET for all the ids, one database query for the
+     * misses only and one pipeline to write them back. The result keeps the order of ids and
+     * skips the ids that do not exist; idOf matches the loaded rows to the ids.
+     */
+    public <R,ID> List<R> queryByIds(Class<R> type, String keyPrefix, List<ID> ids, Function<R,ID> idOf, Function<List<ID>,List<R>> db, Long expire, TimeUnit timeUnit) {
+        if (ids == null || ids.isEmpty()) return Collections.emptyList();
+        List<String> keys = ids.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        Map<ID, R> found = new HashMap<>(ids.size());
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) found.put(ids.get(i), type.cast(decode(json,type).getData()));
+//            "" means we already know it does not exist
+            else if (json == null) misses.add(ids.get(i));
+        }
+        if (!misses.isEmpty()) {
+            for (R r : db.apply(misses)) found.put(idOf.apply(r), r);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : misses) {
+                    R r = found.get(id);
+//                    prevent Cache penetration
+                    if (r == null) conn.setEx(keyPrefix + id, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), "");
+                    else conn.setEx(keyPrefix + id, timeUnit.toSeconds(expire), cacheCodec.encode(toRedisData(r, null)));
+                }
+                return null;
+            });
+        }
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) result.add(r);
+        }
+        return result;
+    }
+
+    /**
+     * delete the cached value in redis and in the local cache of every node
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        nearCache.invalidate(key);
+    }
+
+    /**
+     * decode with whichever codec wrote the value, old json values stay readable
+     */
+    private RedisData decode(String raw, Class<?> type) {
+        return codecOf(raw).decode(raw, type);
+    }
+
+    private CacheCodec codecOf(String raw) {
+        return cacheCodec.accepts(raw) ? cacheCodec : JSON_CODEC;
+    }
+
+    private RedisData toRedisData(Object data, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(data);
+        redisData.setExpireTime(expireTime);
+        return redisData;
+    }
+
     private void freeLock(String key) {stringRedisTemplate.delete(key);}
 
     private Boolean tryLock(String key){
@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.KEY_PREFIX;
+
+/**
+ * Reentrant lock in a redis hash {owner: hold count}, created by {@link RedisLockClient}.
+ * <p>
+ * A lock taken without a lease is renewed by the watchdog as long as it is held, so a long GC pause or a
+ * slow business does not let it expire, while a dead node still loses it after one lease. A waiting
+ * tryLock sleeps until the holder publishes its unlock, instead of spinning on SETNX.
+ */
+public class ReentrantRedisLock implements ILock {
+    private final RedisLockClient client;
+    private final String key;
+
+    ReentrantRedisLock(RedisLockClient client, String name) {
+        this.client = client;
+        this.key = KEY_PREFIX + name;
+    }
+
+    @Override
+    public boolean tryLock(long timeoutSec) {
+        return client.acquire(key, TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
+    }
+
+    /**
+     * wait up to waitTime for the lock; leaseTime <= 0 keeps the lock alive until unlock
+     */
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long leaseMillis = leaseTime > 0 ? unit.toMillis(leaseTime) : -1;
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        if (client.acquire(key, leaseMillis) == null) return true;
+//        listen before trying again, so an unlock published right after a failed try still wakes us up
+        RedisLockClient.Waiter waiter = client.subscribe(key);
+        try {
+            while (true) {
+                long seen = waiter.unlocks();
+                Long ttl = client.acquire(key, leaseMillis);
+                if (ttl == null) return true;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) return false;
+//                the unlock message wakes us up, the ttl bounds the wait if the holder died instead
+                waiter.await(seen, ttl < 0 ? remaining : Math.min(ttl, remaining));
+            }
+        } finally {
+            client.unsubscribe(key, waiter);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        client.release(key);
+    }
+}
@@ -0,0 +1,116 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * Stock of a seckill voucher, in one key or split into segments.
+ * <p>
+ * With seckill.stock.segments > 1 a new voucher gets its stock in N keys "seckill:stock:{id:i}", each in its own
+ * hash slot, so a Redis Cluster shares the buyers among its shards. A user always claims its order in the home
+ * segment picked by its id hash ("seckill:order:{id:i}" lives in the same slot as the stock of that segment),
+ * and takes the stock from the next segments when its home segment ran out.
+ */
+@Component
+public class SeckillStock {
+    public static final String ORDER_KEY = "seckill:order:";
+    private static final String SEGMENTS_KEY = "seckill:segments:";
+
+    public static final int EMPTY = -1;
+    public static final int REPEATED = -2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SoldOutMarkers soldOutMarkers;
+
+    @Value("${seckill.stock.segments:1}")
+    private int segments;
+
+    private final Map<Long, Integer> segmentsOfVoucher = new ConcurrentHashMap<>();
+
+    /**
+     * write the stock of a new voucher into redis
+     */
+    public void init(Long voucherId, int stock) {
+        int n = Math.max(1, Math.min(segments, stock));
+        if (n == 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            for (int i = 0; i < n; i++) {
+//                the remainder goes to the first segments
+                int part = stock / n + (i < stock % n ? 1 : 0);
+                stringRedisTemplate.opsForValue().set(stockKey(voucherId, n, i), String.valueOf(part));
+            }
+        }
+        stringRedisTemplate.opsForValue().set(SEGMENTS_KEY + voucherId, String.valueOf(n));
+        segmentsOfVoucher.put(voucherId, n);
+        soldOutMarkers.clear(voucherId);
+    }
+
+    /**
+     * vouchers added before segmentation have no SEGMENTS_KEY and count as one segment
+     */
+    public int segmentsOf(Long voucherId) {
+        return segmentsOfVoucher.computeIfAbsent(voucherId, id -> {
+            String n = stringRedisTemplate.opsForValue().get(SEGMENTS_KEY + id);
+            return StrUtil.isBlank(n) ? 1 : Integer.parseInt(n);
+        });
+    }
+
+    /**
+     * take one from a segmented stock for the user
+     *
+     * @return index of the segment it was taken from, EMPTY or REPEATED
+     */
+    public int reserve(Long voucherId, Long userId) {
+        int n = segmentsOf(voucherId);
+        int home = homeSegment(userId, n);
+        Long r = RedisScripts.execute(stringRedisTemplate, RedisScripts.SECKILL_SEGMENT_CLAIM,
+                Arrays.asList(stockKey(voucherId, n, home), orderKey(voucherId, n, home)), userId.toString());
+        if (r == null || r == 2) return REPEATED;
+        if (r == 0) return home;
+//        the segments are in different slots and one script can only touch one slot,
+//        so the walk over them is done from here, one script per segment
+        for (int k = 1; k < n; k++) {
+            int i = (home + k) % n;
+            Long taken = RedisScripts.execute(stringRedisTemplate, RedisScripts.SECKILL_SEGMENT_TAKE, Collections.singletonList(stockKey(voucherId, n, i)));
+            if (taken != null && taken == 1) return i;
+        }
+//        every segment is empty, let the user go again
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, n, home), userId.toString());
+        return EMPTY;
+    }
+
+    /**
+     * give back what reserve took, when the order could not be queued
+     */
+    public void release(Long voucherId, Long userId, int segment) {
+        int n = segmentsOf(voucherId);
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, n, segment));
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, n, homeSegment(userId, n)), userId.toString());
+    }
+
+    private String stockKey(Long voucherId, int n, int i) {
+        return n == 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + i + "}";
+    }
+
+    private String orderKey(Long voucherId, int n, int i) {
+        return n == 1 ? ORDER_KEY + voucherId : ORDER_KEY + "{" + voucherId + ":" + i + "}";
+    }
+
+    private int homeSegment(Long userId, int n) {
+        return (int) Math.floorMod(userId, (long) n);
+    }
+}
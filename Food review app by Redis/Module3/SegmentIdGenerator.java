@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Same ids as RedisIdGenerator (seconds since 2022-01-01 in the high 32 bits, a daily sequence in the low 32 bits),
+ * but the sequence is reserved in blocks of id.segment.step with one INCRBY and handed out from an AtomicLong.
+ * When id.segment.prefetch-at of a block is used the next block is reserved in the background, so the
+ * hot path normally never waits for redis.
+ * <p>
+ * Ids stay unique and roughly time ordered, but not strictly increasing across nodes, and the unused
+ * rest of a block is skipped on restart or when the day changes.
+ */
+@Slf4j
+@Component
+public class SegmentIdGenerator {
+    //    2022-01-01 00:00:00 UTC, the epoch of the ids and of the hot blog scores
+    public static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${id.segment.step:1000}")
+    private long step;
+
+    @Value("${id.segment.prefetch-at:0.8}")
+    private double prefetchAt;
+
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+
+    public long nextId(String keyPrefix) {
+        LocalDateTime now = LocalDateTime.now();
+        long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        long seq = buffers.computeIfAbsent(keyPrefix, Buffer::new).next(now.format(DAY));
+        return timestamp << COUNT_BITS | seq;
+    }
+
+    private static class Block {
+        private final String day;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchSeq;
+
+        private Block(String day, long start, long end, long prefetchSeq) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchSeq = prefetchSeq;
+        }
+    }
+
+    private class Buffer {
+        private final String keyPrefix;
+        private volatile Block current;
+        private CompletableFuture<Block> next;
+        private String nextDay;
+
+        private Buffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String day) {
+            while (true) {
+                Block block = current;
+                if (block != null && block.day.equals(day)) {
+                    long seq = block.cursor.getAndIncrement();
+                    if (seq < block.end) {
+//                        exactly one caller gets this seq, so the prefetch starts once per block
+                        if (seq == block.prefetchSeq) prefetch(day);
+                        return seq;
+                    }
+                }
+                synchronized (this) {
+                    if (current == block) current = take(day);
+                }
+            }
+        }
+
+        private synchronized void prefetch(String day) {
+            if (next != null) return;
+            nextDay = day;
+            next = CompletableFuture.supplyAsync(() -> allocate(day), PREFETCH_EXECUTOR);
+        }
+
+        /**
+         * the prefetched block if it is for today, else reserve one now; a block of yesterday is dropped
+         */
+        private Block take(String day) {
+            CompletableFuture<Block> prefetched = next;
+            boolean sameDay = day.equals(nextDay);
+            next = null;
+            nextDay = null;
+            if (prefetched != null && sameDay) {
+                try {
+                    return prefetched.join();
+                } catch (Exception e) {
+                    log.warn("prefetch of id block {} failed, reserving now", keyPrefix, e);
+                }
+            }
+            return allocate(day);
+        }
+
+        private Block allocate(String day) {
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day, step);
+            if (end == null) throw new IllegalStateException("can not reserve ids for " + keyPrefix);
+            long start = end - step + 1;
+            return new Block(day, start, end + 1, start + (long) (step * prefetchAt));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Vouchers known to be sold out on this node. Once the script said "empty!" the next buyers are turned
+ * away without touching redis. A marker is spread to the other nodes, dropped everywhere on restock,
+ * and anyway forgotten after seckill.soldout.ttl-seconds, in case a restock message was missed.
+ */
+@Slf4j
+@Component
+public class SoldOutMarkers implements MessageListener {
+    private static final String SOLD_OUT_CHANNEL = "seckill:soldout";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${seckill.soldout.ttl-seconds:60}")
+    private long ttlSeconds;
+
+//    voucherId -> when it was marked
+    private final Map<Long, Long> markers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = markers.get(voucherId);
+        if (markedAt == null) return false;
+        if (System.currentTimeMillis() - markedAt < ttlSeconds * 1000) return true;
+        markers.remove(voucherId, markedAt);
+        return false;
+    }
+
+    public void markSoldOut(Long voucherId) {
+//        only the first buyer who saw it empty tells the others
+        if (markers.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SOLD_OUT_CHANNEL, "+" + voucherId);
+        }
+    }
+
+    public void clear(Long voucherId) {
+        markers.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SOLD_OUT_CHANNEL, "-" + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == '+') markers.putIfAbsent(voucherId, System.currentTimeMillis());
+        else markers.remove(voucherId);
+        log.debug("sold out marker {}", body);
+    }
+}
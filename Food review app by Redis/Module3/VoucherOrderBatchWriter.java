@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Saves the orders of {@link VoucherOrderStream} batch by batch: one multi-row insert and one
+ * "stock = stock - n" per voucher, in one transaction.
+ * <p>
+ * The lua script already made sure of the stock and of one order per user, and a repeated delivery of the
+ * same order is stopped by the unique index on tb_voucher_order(user_id, voucher_id), so there is no
+ * lock and no count() per order any more. If the batch fails on that index it is saved again row by row,
+ * skipping the orders that are already there.
+ */
+@Slf4j
+@Component
+public class VoucherOrderBatchWriter {
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private VoucherOrderStream voucherOrderStream;
+
+    @PostConstruct
+    private void init() {
+        voucherOrderStream.start(this::write);
+    }
+
+    public void write(List<VoucherOrder> orders) {
+//        the same order may come twice in one batch when it was claimed again
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+        }
+        List<VoucherOrder> batch = new ArrayList<>(unique.values());
+        try {
+            transactionTemplate.executeWithoutResult(status -> saveBatch(batch));
+        } catch (DuplicateKeyException | IllegalStateException e) {
+            log.warn("batch of {} orders failed ({}), saving one by one", batch.size(), e.getMessage());
+            batch.forEach(this::saveOne);
+        }
+    }
+
+    private void saveBatch(List<VoucherOrder> batch) {
+        Map<Long, Long> countByVoucher = batch.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, n) -> {
+            boolean success = seckillVoucherService.update().setSql("stock = stock-" + n)
+                    .eq("voucher_id", voucherId).ge("stock", n).update();
+            if (!success) throw new IllegalStateException("not enough stock of voucher " + voucherId);
+        });
+        voucherOrderService.saveBatch(batch, batch.size());
+    }
+
+    private void saveOne(VoucherOrder order) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                boolean success = seckillVoucherService.update().setSql("stock = stock-1")
+                        .eq("voucher_id", order.getVoucherId()).gt("stock", 0).update();
+                if (!success) throw new IllegalStateException("sold out");
+                voucherOrderService.save(order);
+            });
+        } catch (DuplicateKeyException e) {
+            log.debug("order of user {} for voucher {} already saved", order.getUserId(), order.getVoucherId());
+        } catch (IllegalStateException e) {
+//            redis sold it but mysql has no stock left, nothing to retry
+            log.error("order {} dropped: {}", order.getId(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.SeckillStock.ORDER_KEY;
+
+/**
+ * Redis stream as the MQ of seckill orders instead of a BlockingQueue in the JVM: orders survive a
+ * restart, and any number of consumers on any number of nodes share the work through a consumer group.
+ * <ul>
+ *     <li>the lua script takes the stock and XADDs the order atomically</li>
+ *     <li>each consumer collects up to batch-size orders, or what arrived within linger-millis of the first one,
+ *     and acks them after the handler saved the batch</li>
+ *     <li>orders left pending (handler failed, consumer died) are claimed again after claim-idle-millis</li>
+ *     <li>orders delivered max-deliveries times go to a dead letter stream</li>
+ *     <li>an order is deleted from the stream once it is acked, the dead letter stream is trimmed to
+ *     about dead-letter-max-length entries</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class VoucherOrderStream {
+    public static final String STREAM_KEY = "stream.orders";
+    private static final String DEAD_LETTER_KEY = "stream.orders.dead";
+    private static final String GROUP = "g1";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStock seckillStock;
+
+    @Resource
+    private SoldOutMarkers soldOutMarkers;
+
+    @Value("${seckill.stream.consumers:4}")
+    private int consumers;
+
+    @Value("${seckill.stream.batch-size:100}")
+    private int batchSize;
+
+    @Value("${seckill.stream.block-millis:2000}")
+    private long blockMillis;
+
+    @Value("${seckill.stream.linger-millis:50}")
+    private long lingerMillis;
+
+    @Value("${seckill.stream.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+
+    @Value("${seckill.stream.max-deliveries:5}")
+    private long maxDeliveries;
+
+    @Value("${seckill.stream.dead-letter-max-length:10000}")
+    private long deadLetterMaxLength;
+
+    private volatile boolean running;
+    private ExecutorService consumerExecutor;
+    private ScheduledExecutorService recoveryExecutor;
+    private java.util.function.Consumer<List<VoucherOrder>> handler;
+
+    /**
+     * check the stock and the one-order-per-user rule and queue the order, all in one script
+     *
+     * @return 0 ok, 1 sold out, 2 repeated order
+     */
+    public int submit(Long voucherId, Long userId, Long orderId) {
+        if (soldOutMarkers.isSoldOut(voucherId)) return 1;
+        int r;
+        if (seckillStock.segmentsOf(voucherId) > 1) {
+            r = submitSegmented(voucherId, userId, orderId);
+        } else {
+            Long result = RedisScripts.execute(stringRedisTemplate, RedisScripts.SECKILL,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, ORDER_KEY + voucherId, STREAM_KEY),
+                    voucherId.toString(), userId.toString(), orderId.toString());
+            r = result == null ? 1 : result.intValue();
+        }
+        if (r == 1) soldOutMarkers.markSoldOut(voucherId);
+        return r;
+    }
+
+    /**
+     * the segments live in other slots than the stream, so here the XADD follows the reservation
+     * instead of being part of it, and the reservation is given back if the XADD fails
+     */
+    private int submitSegmented(Long voucherId, Long userId, Long orderId) {
+        int segment = seckillStock.reserve(voucherId, userId);
+        if (segment == SeckillStock.EMPTY) return 1;
+        if (segment == SeckillStock.REPEATED) return 2;
+        Map<String, String> order = new HashMap<>();
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", orderId.toString());
+        try {
+            stringRedisTemplate.opsForStream().add(STREAM_KEY, order);
+        } catch (RuntimeException e) {
+            seckillStock.release(voucherId, userId, segment);
+            throw e;
+        }
+        return 0;
+    }
+
+    /**
+     * start consuming, handler gets one batch at a time and must throw if the batch was not saved
+     */
+    public synchronized void start(java.util.function.Consumer<List<VoucherOrder>> handler) {
+        if (running) return;
+        this.handler = handler;
+        createGroup();
+        running = true;
+        String node = nodeName();
+        consumerExecutor = Executors.newFixedThreadPool(consumers);
+        for (int i = 0; i < consumers; i++) {
+            String name = node + "-" + i;
+            consumerExecutor.submit(() -> consume(name));
+        }
+        recoveryExecutor = Executors.newSingleThreadScheduledExecutor();
+        recoveryExecutor.scheduleWithFixedDelay(() -> recoverIdle(node + "-recovery"),
+                claimIdleMillis, claimIdleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        if (consumerExecutor != null) consumerExecutor.shutdownNow();
+        if (recoveryExecutor != null) recoveryExecutor.shutdownNow();
+    }
+
+    private void consume(String name) {
+//        the name is new on every start, what the last run left unacked is picked up by recoverIdle
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>();
+        long deadline = 0;
+        while (running) {
+            try {
+//                an empty batch waits for the first order, a started one only until its linger runs out
+                long block = batch.isEmpty() ? blockMillis : Math.max(1, deadline - System.currentTimeMillis());
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP, name),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(block)),
+                        StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()));
+                if (records != null && !records.isEmpty()) {
+                    if (batch.isEmpty()) deadline = System.currentTimeMillis() + lingerMillis;
+                    batch.addAll(records);
+                }
+                if (batch.isEmpty()) continue;
+                if (batch.size() >= batchSize || System.currentTimeMillis() >= deadline) {
+                    List<MapRecord<String, Object, Object>> full = batch;
+                    batch = new ArrayList<>();
+                    handle(full);
+                }
+            } catch (Exception e) {
+                if (!running) return;
+//                the batch stays pending and is claimed again by recoverIdle
+                log.error("asynchronously Handle order exception", e);
+                batch = new ArrayList<>();
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * claim orders pending too long on any consumer, move the ones that keep failing to the dead letter stream
+     */
+    private void recoverIdle(String name) {
+        try {
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(STREAM_KEY, GROUP, Range.unbounded(), batchSize);
+            List<RecordId> retry = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMillis) continue;
+                if (message.getTotalDeliveryCount() >= maxDeliveries) deadLetter(message.getId());
+                else retry.add(message.getId());
+            }
+            if (retry.isEmpty()) return;
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().claim(
+                    STREAM_KEY, GROUP, name, Duration.ofMillis(claimIdleMillis), retry.toArray(new RecordId[0]));
+            if (!records.isEmpty()) handle(records);
+        } catch (Exception e) {
+            log.error("recover pending order exception", e);
+        }
+    }
+
+    private void deadLetter(RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(STREAM_KEY, Range.closed(id.getValue(), id.getValue()));
+        if (records != null && !records.isEmpty()) {
+            Map<Object, Object> value = new HashMap<>(records.get(0).getValue());
+            value.put("sourceId", id.getValue());
+            stringRedisTemplate.opsForStream().add(DEAD_LETTER_KEY, value);
+            stringRedisTemplate.opsForStream().trim(DEAD_LETTER_KEY, deadLetterMaxLength, true);
+            log.error("order {} moved to {} after {} deliveries", value, DEAD_LETTER_KEY, maxDeliveries);
+        }
+        ackAndDelete(id);
+    }
+
+    private void handle(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = records.stream()
+                .map(record -> BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true))
+                .collect(Collectors.toList());
+        handler.accept(orders);
+        ackAndDelete(records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+    }
+
+    /**
+     * XACK only takes the entries out of the pending list, without XDEL the stream grows with every order.
+     * MAXLEN on XADD is not used, it could trim orders nobody has read yet.
+     */
+    private void ackAndDelete(RecordId... ids) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.xAck(STREAM_KEY, GROUP, ids);
+            conn.xDel(STREAM_KEY, ids);
+            return null;
+        });
+    }
+
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    STREAM_KEY.getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+//            BUSYGROUP, another node or an earlier run already created it
+            log.debug("consumer group {} exists", GROUP);
+        }
+    }
+
+    /**
+     * two processes on one host, or containers sharing a hostname, must not read as the same consumer
+     */
+    private String nodeName() {
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        try {
+            return InetAddress.getLocalHost().getHostName() + "-" + suffix;
+        } catch (UnknownHostException e) {
+            return "consumer-" + suffix;
+        }
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(blockMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -7,15 +7,13 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillStock;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  service implementation class
@@ -27,10 +25,10 @@ import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private ISeckillVoucherService seckillVoucherService;
+    private SeckillStock seckillStock;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,8 +50,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //save hot voucher into redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),
-                voucher.getStock().toString());
+        //save hot voucher into redis, split into segments if seckill.stock.segments > 1
+        seckillStock.init(voucher.getId(), voucher.getStock());
     }
 }
@@ -0,0 +1,8 @@
+-- KEYS[1] lock key, ARGV[1] owner, ARGV[2] lease millis
+-- return nil when locked (again), else the ttl of the lock held by someone else
+if ((redis.call('exists', KEYS[1]) == 0) or (redis.call('hexists', KEYS[1], ARGV[1]) == 1)) then
+    redis.call('hincrby', KEYS[1], ARGV[1], 1)
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return nil
+end
+return redis.call('pttl', KEYS[1])
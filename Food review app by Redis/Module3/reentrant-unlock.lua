@@ -0,0 +1,12 @@
+-- KEYS[1] lock key, ARGV[1] owner, ARGV[2] lease millis, ARGV[3] unlock channel
+-- return nil when not the owner, 0 when still held by an outer call, 1 when released
+if (redis.call('hexists', KEYS[1], ARGV[1]) == 0) then
+    return nil
+end
+if (redis.call('hincrby', KEYS[1], ARGV[1], -1) > 0) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 0
+end
+redis.call('del', KEYS[1])
+redis.call('publish', ARGV[3], KEYS[1])
+return 1
@@ -0,0 +1,11 @@
+-- KEYS[1] stock key of the user's home segment, KEYS[2] set of users who ordered, same slot
+-- ARGV[1] userId
+-- return 0 ok, 1 home segment empty (the user stays claimed), 2 repeated order
+if (redis.call('sadd', KEYS[2], ARGV[1]) == 0) then
+    return 2
+end
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
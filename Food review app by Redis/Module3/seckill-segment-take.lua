@@ -0,0 +1,7 @@
+-- KEYS[1] stock key of one segment
+-- return 1 if one was taken, 0 if the segment is empty
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
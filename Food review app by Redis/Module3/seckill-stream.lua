@@ -0,0 +1,14 @@
+-- KEYS[1] stock key, KEYS[2] set of users who ordered, KEYS[3] order stream
+-- ARGV[1] voucherId, ARGV[2] userId, ARGV[3] orderId
+-- return 0 ok, 1 sold out, 2 repeated order
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 1
+end
+if (redis.call('sismember', KEYS[2], ARGV[2]) == 1) then
+    return 2
+end
+redis.call('incrby', KEYS[1], -1)
+redis.call('sadd', KEYS[2], ARGV[2])
+-- the order is queued in the same atomic step as the stock is taken, so it can not be lost
+redis.call('xadd', KEYS[3], '*', 'userId', ARGV[2], 'voucherId', ARGV[1], 'id', ARGV[3])
+return 0
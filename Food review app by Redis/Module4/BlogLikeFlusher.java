@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.collection.CollUtil;
+import com.hmdp.service.IBlogService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.CacheConstants.CACHE_BLOG_KEY;
+
+/**
+ * Write-behind of blog likes. likeBlog only changes the ZSET of likers and marks the blog dirty, this
+ * writes the like counts of the dirty blogs into tb_blog every blog.like.flush-millis.
+ * <p>
+ * The dirty set is renamed to a flushing set before it is read, so likes coming in meanwhile go to a new
+ * dirty set. The count written is the one like-toggle.lua keeps next to the ZSET of likers, not a delta, so
+ * writing a blog twice does no harm: a flushing set left behind by a crash is simply flushed again by the next
+ * run, on any node. A blog whose count is gone from redis is skipped instead of being set to 0.
+ */
+@Slf4j
+@Component
+public class BlogLikeFlusher {
+    public static final String DIRTY_KEY = "blog:liked:dirty";
+    private static final String FLUSHING_KEY = "blog:liked:flushing";
+    public static final String COUNT_KEY = "blog:liked:count:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private RedisUtils redisUtils;
+
+    @Resource
+    private HotBlogBoard hotBlogBoard;
+
+    @Value("${blog.like.flush-millis:5000}")
+    private long flushMillis;
+
+    @Value("${blog.like.flush-batch:500}")
+    private int batchSize;
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    private void init() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor();
+//        the first run also picks up what a crashed node left in the flushing set
+        flushExecutor.scheduleWithFixedDelay(this::flush, 0, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    public void flush() {
+//        one node at a time, else one could delete the flushing set another has just renamed
+        RedisLock lock = new RedisLock(stringRedisTemplate, "blog:liked:flush");
+        if (!lock.tryLock(TimeUnit.MILLISECONDS.toSeconds(flushMillis) + 60)) return;
+        try {
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(FLUSHING_KEY))) {
+                if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(DIRTY_KEY))) return;
+                stringRedisTemplate.rename(DIRTY_KEY, FLUSHING_KEY);
+            }
+            Set<String> ids = stringRedisTemplate.opsForSet().members(FLUSHING_KEY);
+            if (ids != null) {
+                for (List<String> batch : CollUtil.split(ids, batchSize)) write(batch);
+            }
+            stringRedisTemplate.delete(FLUSHING_KEY);
+        } catch (Exception e) {
+//            the flushing set stays, the next run tries again
+            log.error("flush blog likes failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(List<String> ids) {
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String id : ids) conn.get(COUNT_KEY + id);
+            return null;
+        });
+        StringBuilder sql = new StringBuilder("liked = CASE id");
+        List<Long> blogIds = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Object count = counts.get(i);
+            if (count == null) {
+                log.warn("like count of blog {} is gone from redis, not flushed", ids.get(i));
+                continue;
+            }
+            long id = Long.parseLong(ids.get(i));
+            blogIds.add(id);
+            sql.append(" WHEN ").append(id).append(" THEN ").append(Long.parseLong(count.toString()));
+        }
+        if (blogIds.isEmpty()) return;
+        sql.append(" END");
+        blogService.update().setSql(sql.toString()).in("id", blogIds).update();
+        hotBlogBoard.update(blogService.query().select("id", "liked", "create_time").in("id", blogIds).list());
+        for (Long id : blogIds) redisUtils.delete(CACHE_BLOG_KEY + id);
+    }
+}
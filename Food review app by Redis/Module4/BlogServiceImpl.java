@@ -3,34 +3,51 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BlogLikeFlusher;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.HotBlogBoard;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.RedisUtils;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.CacheConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.CacheConstants.CACHE_BLOG_TTL;
+import static com.hmdp.utils.CacheConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.CacheConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
  * <p>
@@ -45,61 +62,92 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisUtils redisUtils;
+
     @Resource
     private IUserService userService;
 
     @Resource
-    private IFollowService followService;
+    private FeedFanout feedFanout;
+
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    @Resource
+    private HotBlogBoard hotBlogBoard;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        idBloomFilters.build(CACHE_BLOG_KEY, count(), (lastId, limit) -> listObjs(
+                new QueryWrapper<Blog>().select("id").gt("id", lastId).orderByAsc("id").last("limit " + limit),
+                id -> ((Number) id).longValue()));
+    }
+
+    @PostConstruct
+    private void initHotBlogBoard() {
+        hotBlogBoard.bootstrap(limit -> query().select("id", "liked", "create_time")
+                .orderByDesc(hotBlogBoard.orderColumn()).orderByDesc("id").last("limit " + limit).list());
+    }
 
     @Override
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
+        //read the page from the hot blog board, the cached blogs are shared so fill copies
+        List<Blog> hot = hotBlogBoard.page(current, SystemConstants.MAX_PAGE_SIZE, ids -> redisUtils.queryByIds(
+                Blog.class, CACHE_BLOG_KEY, ids, Blog::getId, this::listByIds, CACHE_BLOG_TTL, TimeUnit.MINUTES));
+        List<Blog> records;
+        if(hot!=null) records = hot.stream().map(blog -> BeanUtil.copyProperties(blog, Blog.class)).collect(Collectors.toList());
+        else {
+            // 根据用户查询, in the order of the board
+            Page<Blog> page = query()
+                    .orderByDesc(hotBlogBoard.orderColumn()).orderByDesc("id")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            // 获取当前页数据
+            records = page.getRecords();
+        }
         // 查询用户
-//        records.forEach(this::fillUserInBlog);
-        records.forEach(blog -> {
-            this.fillUserInBlog(blog);
-            this.fillBlogLiked(blog);
-        });
+        fillUsersInBlogs(records);
+        fillBlogsLiked(records);
         return Result.ok(records);
     }
 
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = getById(id);
-        if(blog==null) return Result.fail("Nonexistent Blog");
-        fillUserInBlog(blog);
+        Blog cached = redisUtils.queryByNormalId(Blog.class, CACHE_BLOG_KEY, id, this::getById,
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if(cached==null) return Result.fail("Nonexistent Blog");
+        //the cached instance is shared, fill user specific fields into a copy
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
+        List<Blog> blogs = Collections.singletonList(blog);
+        fillUsersInBlogs(blogs);
         //check if blog has been liked
-        fillBlogLiked(blog);
+        fillBlogsLiked(blogs);
         return Result.ok(blog);
     }
 
-    private void fillBlogLiked(Blog blog) {
+    /**
+     * whether the current user liked each blog, one pipeline for the whole page
+     */
+    private void fillBlogsLiked(List<Blog> blogs) {
         UserDTO user = UserHolder.getUser();
-        if(user==null) return;// not login
-        Long userId = user.getId();
-        String watch1 = BLOG_LIKED_KEY + blog.getId();
-        String watch2 = userId.toString();
-        Double score = stringRedisTemplate.opsForZSet().score(watch1, watch2);
-        blog.setIsLike(score!=null);
+        if(user==null||blogs.isEmpty()) return;// not login
+        String userId = user.getId().toString();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId);
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) blogs.get(i).setIsLike(scores.get(i)!=null);
     }
 
     @Override
     public Result likeBlog(Long id) {
         Long userId = UserHolder.getUser().getId();
-        String key = BLOG_LIKED_KEY+id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        if(score!=null){
-            boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
-            if(success) stringRedisTemplate.opsForZSet().remove(key, userId.toString());
-        }else {
-            boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
-            if(success) stringRedisTemplate.opsForZSet().add(key, userId.toString(),System.currentTimeMillis());
-        }
+        if(!idBloomFilters.mightContain(CACHE_BLOG_KEY, id)) return Result.fail("Nonexistent Blog");
+        //toggle in redis only, BlogLikeFlusher writes the count into the database later
+        RedisScripts.execute(stringRedisTemplate, RedisScripts.LIKE_TOGGLE,
+                Arrays.asList(BLOG_LIKED_KEY+id, BlogLikeFlusher.DIRTY_KEY, BlogLikeFlusher.COUNT_KEY+id),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString());
         return Result.ok();
     }
 
@@ -120,23 +168,20 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
         if(!save(blog))return Result.fail("Failed to save blog");
-        //push new blog to followers
-        //get all followers
-        List<Follow> fans = followService.query().eq("follow_user_id", user.getId()).list();
-        for (Follow fan : fans) {
-            Long userId = fan.getUserId();
-            String key = FEED_KEY+userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-        }
+        idBloomFilters.put(CACHE_BLOG_KEY, blog.getId());
+        hotBlogBoard.update(Collections.singletonList(blog));
+        //push new blog to followers in the background, or into the outbox of a big author
+        feedFanout.publish(user.getId(), blog.getId(), System.currentTimeMillis());
         return Result.ok(blog.getId());
     }
 
     @Override
     public Result queryBlogOfFollow(Long max, Integer offset) {
         Long curUserId = UserHolder.getUser().getId();
-        String key = FEED_KEY+curUserId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-        if(typedTuples==null||typedTuples.isEmpty()) return Result.ok();
+        List<ZSetOperations.TypedTuple<String>> typedTuples = feedFanout.read(curUserId, max, offset, 2);
+        //past the blogs kept in redis
+        if(typedTuples.isEmpty()) typedTuples = queryColdFeed(curUserId, max, offset, 2);
+        if(typedTuples.isEmpty()) return Result.ok();
         List<Long> ids = new ArrayList<>(typedTuples.size());
         long minTime = 0;
         int os = 1;
@@ -150,12 +195,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Blog blog : blogs) {
-            fillUserInBlog(blog);
-            fillBlogLiked(blog);
-        }
+        List<Blog> blogs = redisUtils.queryByIds(Blog.class, CACHE_BLOG_KEY, ids, Blog::getId, this::listByIds,
+                CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        fillUsersInBlogs(blogs);
+        fillBlogsLiked(blogs);
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
         scrollResult.setMinTime(minTime);
@@ -163,10 +206,43 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(scrollResult);
     }
 
-    private void fillUserInBlog(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * the feed in the database, by (create_time, id) with the same max and offset as the inbox.
+     * Right after the inbox ran dry, the offset still counts inbox blogs, and the blogs the inbox
+     * already showed are left out.
+     */
+    private List<ZSetOperations.TypedTuple<String>> queryColdFeed(Long userId, long max, int offset, int count) {
+        List<Long> followees = feedFanout.followees(userId);
+        if(followees.isEmpty()) return Collections.emptyList();
+        Map<String, Double> seen = feedFanout.seenAround(userId, max);
+        boolean fromInbox = seen.values().stream().anyMatch(score -> score <= max);
+        int skip = fromInbox ? 0 : offset;
+        LocalDateTime maxTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(max), ZoneId.systemDefault());
+        List<Blog> blogs = query().select("id", "create_time").in("user_id", followees).le("create_time", maxTime)
+                .orderByDesc("create_time").orderByDesc("id").last("limit " + (skip + count + seen.size())).list();
+        return blogs.stream()
+                .filter(blog -> !seen.containsKey(blog.getId().toString()))
+                .skip(skip)
+                .limit(count)
+                .<ZSetOperations.TypedTuple<String>>map(blog -> new DefaultTypedTuple<>(blog.getId().toString(),
+                        (double) blog.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * authors of the page in one multi-get from the user cache, the misses in one query
+     */
+    private void fillUsersInBlogs(List<Blog> blogs) {
+        if(blogs.isEmpty()) return;
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> users = redisUtils.queryByIds(UserDTO.class, CACHE_USER_KEY, userIds, UserDTO::getId,
+                ids -> userService.listByIds(ids).stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList()),
+                CACHE_USER_TTL, TimeUnit.MINUTES).stream().collect(Collectors.toMap(UserDTO::getId, user -> user));
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if(user==null) continue;
+            blog.setName(user.getNickName());
+            blog.setIcon(user.getIcon());
+        }
     }
 }
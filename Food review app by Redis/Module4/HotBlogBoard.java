@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.TimedCache;
+import com.hmdp.entity.Blog;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.SegmentIdGenerator.BEGIN_TIMESTAMP;
+
+/**
+ * The hot blogs in a ZSET "blog:hot", so /blog/hot reads a page by rank instead of ORDER BY liked LIMIT.
+ * <p>
+ * The score is the like count, or with blog.hot.decay-seconds > 0 log10(likes) + age bonus, where a blog
+ * newer by decay-seconds is worth ten times the likes. New blogs are added by saveBolg and the like counts
+ * are updated by {@link BlogLikeFlusher}, the board keeps the best blog.hot.capacity blogs. Pages are
+ * kept for blog.hot.page-ttl-seconds, pages past the board go to the database, ordered by
+ * {@link #orderColumn()} so they go on where the board ends.
+ */
+@Slf4j
+@Component
+public class HotBlogBoard {
+    private static final String HOT_KEY = "blog:hot";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${blog.hot.capacity:1000}")
+    private int capacity;
+
+    @Value("${blog.hot.decay-seconds:0}")
+    private long decaySeconds;
+
+    @Value("${blog.hot.page-ttl-seconds:5}")
+    private long pageTtlSeconds;
+
+    private TimedCache<Integer, List<Blog>> pages;
+
+    @PostConstruct
+    private void init() {
+        pages = CacheUtil.newTimedCache(pageTtlSeconds * 1000);
+    }
+
+    /**
+     * fill an empty board from the database, topN returns the blogs with most likes
+     */
+    public void bootstrap(IntFunction<List<Blog>> topN) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(HOT_KEY))) return;
+        List<Blog> blogs = topN.apply(capacity);
+        update(blogs);
+        log.info("hot blog board bootstrapped with {} blogs", blogs.size());
+    }
+
+    /**
+     * blogs need id, liked and createTime
+     */
+    public void update(Collection<Blog> blogs) {
+        if (blogs.isEmpty()) return;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) conn.zAdd(HOT_KEY, score(blog), blog.getId().toString());
+//            keep the best capacity blogs
+            conn.zRemRange(HOT_KEY, 0, -capacity - 1);
+            return null;
+        });
+    }
+
+    /**
+     * @return the blogs of the page, shared between callers, or null if the page is not on the board
+     */
+    public List<Blog> page(int current, int size, Function<List<Long>, List<Blog>> loader) {
+        long start = (long) (current - 1) * size;
+        if (start >= capacity) return null;
+        List<Blog> cached = pages.get(current, false);
+        if (cached != null) return cached;
+        Set<String> ids = stringRedisTemplate.opsForZSet().reverseRange(HOT_KEY, start, start + size - 1);
+        if (ids == null || ids.isEmpty()) return null;
+        List<Blog> blogs = loader.apply(ids.stream().map(Long::valueOf).collect(Collectors.toList()));
+        pages.put(current, blogs);
+        return blogs;
+    }
+
+    /**
+     * the score as sql, to order the database the same way as the board; ties go by id.
+     * UNIX_TIMESTAMP works in the session time zone, which shifts every blog alike and keeps the order
+     */
+    public String orderColumn() {
+        if (decaySeconds <= 0) return "liked";
+        return "LOG10(GREATEST(liked, 1)) + (UNIX_TIMESTAMP(create_time) - " + BEGIN_TIMESTAMP + ") / " + decaySeconds;
+    }
+
+    private double score(Blog blog) {
+        long liked = blog.getLiked() == null ? 0 : blog.getLiked();
+        if (decaySeconds <= 0) return liked;
+        LocalDateTime createTime = blog.getCreateTime() == null ? LocalDateTime.now() : blog.getCreateTime();
+        long age = createTime.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        return Math.log10(Math.max(liked, 1)) + (double) age / decaySeconds;
+    }
+}
@@ -0,0 +1,15 @@
+-- KEYS[1] users who liked the blog, KEYS[2] set of blogs whose likes changed, KEYS[3] like count of the blog
+-- ARGV[1] userId, ARGV[2] now, ARGV[3] blogId
+-- return 1 liked, 0 unliked
+local liked = 1
+if (redis.call('zscore', KEYS[1], ARGV[1])) then
+    redis.call('zrem', KEYS[1], ARGV[1])
+    liked = 0
+else
+    redis.call('zadd', KEYS[1], ARGV[2], ARGV[1])
+end
+-- kept apart from the ZSET, which redis deletes with its last member: a count of 0 still exists,
+-- a missing count means the likes were lost and must not be flushed over the database
+redis.call('set', KEYS[3], redis.call('zcard', KEYS[1]))
+redis.call('sadd', KEYS[2], ARGV[3])
+return liked
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
+/**
+ * tb_follow in redis, both ways: FOLLOWS_KEY + user is who the user follows, "fans:" + user who follows the user.
+ * <p>
+ * follow() keeps both sets in step with the table. A set is only trusted when its user is in the warm set
+ * ("follows:warm" / "fans:warm"), older users are rebuilt from the table the first time they are needed,
+ * the fans while a fan-out walks through them anyway.
+ */
+@Slf4j
+@Component
+public class FollowGraph {
+    private static final String FANS_KEY = "fans:";
+    private static final String FOLLOWS_WARM_KEY = "follows:warm";
+    private static final String FANS_WARM_KEY = "fans:warm";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private FollowMapper followMapper;
+
+    public void follow(Long userId, Long followUserId) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sAdd(FOLLOWS_KEY + userId, followUserId.toString());
+            conn.sAdd(FANS_KEY + followUserId, userId.toString());
+            return null;
+        });
+    }
+
+    public void unfollow(Long userId, Long followUserId) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sRem(FOLLOWS_KEY + userId, followUserId.toString());
+            conn.sRem(FANS_KEY + followUserId, userId.toString());
+            return null;
+        });
+    }
+
+    public boolean isFollowing(Long userId, Long followUserId) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.sIsMember(FOLLOWS_WARM_KEY, userId.toString());
+            conn.sIsMember(FOLLOWS_KEY + userId, followUserId.toString());
+            return null;
+        });
+        if (Boolean.TRUE.equals(results.get(0))) return Boolean.TRUE.equals(results.get(1));
+        return rebuildFollows(userId).contains(followUserId);
+    }
+
+    /**
+     * make FOLLOWS_KEY + user complete before it is read directly
+     */
+    public void warmFollows(Long userId) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FOLLOWS_WARM_KEY, userId.toString()))) {
+            rebuildFollows(userId);
+        }
+    }
+
+    public Set<Long> follows(Long userId) {
+        warmFollows(userId);
+        Set<String> ids = stringRedisTemplate.opsForSet().members(FOLLOWS_KEY + userId);
+        return ids == null ? new HashSet<>() : ids.stream().map(Long::valueOf).collect(Collectors.toSet());
+    }
+
+    public long fanCount(Long userId) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FANS_WARM_KEY, userId.toString()))) {
+            Long size = stringRedisTemplate.opsForSet().size(FANS_KEY + userId);
+            return size == null ? 0 : size;
+        }
+        Integer count = followMapper.selectCount(new QueryWrapper<Follow>().eq("follow_user_id", userId));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * fan ids batch by batch, by SSCAN of the fans set, or for a cold user by keyset over
+     * (follow_user_id, user_id), filling the fans set on the way. Only one batch is in memory,
+     * whatever the number of fans; SSCAN may return a fan twice.
+     */
+    public void forEachFanBatch(Long userId, int batchSize, Consumer<long[]> consumer) {
+        String key = FANS_KEY + userId;
+        if (Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FANS_WARM_KEY, userId.toString()))) {
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, ScanOptions.scanOptions().count(batchSize).build())) {
+                long[] batch = new long[batchSize];
+                int n = 0;
+                while (cursor.hasNext()) {
+                    batch[n++] = Long.parseLong(cursor.next());
+                    if (n == batchSize) {
+                        consumer.accept(batch);
+                        batch = new long[batchSize];
+                        n = 0;
+                    }
+                }
+                if (n > 0) consumer.accept(Arrays.copyOf(batch, n));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return;
+        }
+        long lastId = 0;
+        while (true) {
+            List<Object> ids = followMapper.selectObjs(new QueryWrapper<Follow>().select("user_id")
+                    .eq("follow_user_id", userId).gt("user_id", lastId)
+                    .orderByAsc("user_id").last("limit " + batchSize));
+            if (ids.isEmpty()) break;
+            long[] fans = ids.stream().mapToLong(id -> ((Number) id).longValue()).toArray();
+            stringRedisTemplate.opsForSet().add(key, Arrays.stream(fans).mapToObj(String::valueOf).toArray(String[]::new));
+            consumer.accept(fans);
+            if (fans.length < batchSize) break;
+            lastId = fans[fans.length - 1];
+        }
+        stringRedisTemplate.opsForSet().add(FANS_WARM_KEY, userId.toString());
+        log.debug("fans of {} rebuilt", userId);
+    }
+
+    /**
+     * add what the table has; never deletes, so a follow() racing with the rebuild is not lost
+     */
+    private Set<Long> rebuildFollows(Long userId) {
+        Set<Long> ids = followMapper.selectObjs(new QueryWrapper<Follow>().select("follow_user_id").eq("user_id", userId))
+                .stream().map(id -> ((Number) id).longValue()).collect(Collectors.toSet());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (!ids.isEmpty()) conn.sAdd(FOLLOWS_KEY + userId, ids.stream().map(String::valueOf).toArray(String[]::new));
+            conn.sAdd(FOLLOWS_WARM_KEY, userId.toString());
+            return null;
+        });
+        return ids;
+    }
+}
@@ -9,6 +9,8 @@ import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.FollowGraph;
+import com.hmdp.utils.RedisUtils;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -19,8 +21,11 @@ import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.CacheConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.CacheConstants.CACHE_USER_TTL;
 import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
 
 /**
@@ -36,29 +41,34 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    RedisUtils redisUtils;
+
     @Resource
     IUserService userService;
 
+    @Resource
+    FollowGraph followGraph;
+
     @Override
     public Result checkFollow(Long followUserId) {
         Long userId = UserHolder.getUser().getId();
-        Integer count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
-        return Result.ok(count>0);
+        return Result.ok(followGraph.isFollowing(userId, followUserId));
     }
 
     @Override
     @Transactional
     public Result follow(Long followUserID, Boolean toFollow) {
         Long userId = UserHolder.getUser().getId();
-        String key = FOLLOWS_KEY+userId;
+        //who the user follows and who follows the author, both in redis
         if(toFollow){
             Follow follow = new Follow();
             follow.setUserId(userId);
             follow.setFollowUserId(followUserID);
-            if(save(follow)) stringRedisTemplate.opsForSet().add(key,followUserID.toString());
+            if(save(follow)) followGraph.follow(userId, followUserID);
 
         }else {
-            if(remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserID))) stringRedisTemplate.opsForSet().remove(key,followUserID.toString());
+            if(remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserID))) followGraph.unfollow(userId, followUserID);
         }
         return Result.ok();
     }
@@ -66,12 +76,16 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Override
     public Result getCommon(Long tarUserId) {
         Long curUserId = UserHolder.getUser().getId();
+        followGraph.warmFollows(curUserId);
+        followGraph.warmFollows(tarUserId);
         String curUserKey = FOLLOWS_KEY+curUserId;
         String tarUserKey = FOLLOWS_KEY+tarUserId;
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(curUserKey, tarUserKey);
         if(intersect==null||intersect.isEmpty()) return Result.ok(Collections.EMPTY_LIST);
         List<Long> commons = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<UserDTO> userDTOs = userService.listByIds(commons).stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList());
+        List<UserDTO> userDTOs = redisUtils.queryByIds(UserDTO.class, CACHE_USER_KEY, commons, UserDTO::getId,
+                ids -> userService.listByIds(ids).stream().map(user -> BeanUtil.copyProperties(user, UserDTO.class)).collect(Collectors.toList()),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
         return Result.ok(userDTOs);
     }
 }
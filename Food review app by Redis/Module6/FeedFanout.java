@@ -0,0 +1,195 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
+/**
+ * Feed of followed authors, push for most of them and pull for the big ones.
+ * <ul>
+ *     <li>an author with less than feed.big-author-followers fans: the blog is pushed into the inbox
+ *     FEED_KEY + fan of every fan, in the background with pipelined ZADDs</li>
+ *     <li>a big author: the blog goes only into its outbox "feed:outbox:" + author, and the author into
+ *     "feed:big-authors"; readers merge the outboxes of the big authors they follow into their inbox</li>
+ * </ul>
+ * So saving a blog costs the same whatever the number of fans: publish only queues the blog, the fan count
+ * and the push or the outbox write run on feed.fanout.threads threads. Their queue holds feed.fanout.queue-capacity
+ * blogs, when it is full the saving thread runs the fan-out itself, which slows down the writers instead of
+ * piling up blogs in memory.
+ * <p>
+ * Inboxes and outboxes keep at most feed.inbox.max-size blogs, none older than feed.inbox.max-age-days,
+ * they are trimmed along with the ZADD. Scrolling past them goes on in the database.
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+    private static final String OUTBOX_KEY = "feed:outbox:";
+    private static final String BIG_AUTHORS_KEY = "feed:big-authors";
+    //    fan-out runs after the blog was saved, so a blog may sit in an inbox a bit newer than its create_time
+    private static final long FANOUT_DELAY_MILLIS = 10000;
+    //    newest first, equal times in a fixed order so the offset of the scrolling stays right
+    private static final Comparator<ZSetOperations.TypedTuple<String>> NEWEST_FIRST =
+            Comparator.comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore()).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private FollowGraph followGraph;
+
+    @Value("${feed.big-author-followers:10000}")
+    private int bigAuthorFollowers;
+
+    @Value("${feed.fanout.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${feed.fanout.threads:2}")
+    private int threads;
+
+    @Value("${feed.fanout.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${feed.inbox.max-size:500}")
+    private int maxSize;
+
+    @Value("${feed.inbox.max-age-days:30}")
+    private long maxAgeDays;
+
+    private ExecutorService fanoutExecutor;
+
+    @PostConstruct
+    private void init() {
+        fanoutExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+//        let the started fan-outs finish
+        fanoutExecutor.shutdown();
+        fanoutExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    public void publish(Long authorId, Long blogId, long time) {
+        fanoutExecutor.execute(() -> {
+            try {
+                fanout(authorId, blogId.toString(), time);
+            } catch (Exception e) {
+                log.error("fan out blog {} of {} failed", blogId, authorId, e);
+            }
+        });
+    }
+
+    /**
+     * the fan count of a cold author is a COUNT(*) in mysql, so it is taken here and not in publish
+     */
+    private void fanout(Long authorId, String blogId, long time) {
+        if (followGraph.fanCount(authorId) >= bigAuthorFollowers) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                add(conn, OUTBOX_KEY + authorId, blogId, time);
+                conn.sAdd(BIG_AUTHORS_KEY, authorId.toString());
+                return null;
+            });
+            return;
+        }
+        push(authorId, blogId, time);
+    }
+
+    private void push(Long authorId, String blogId, long time) {
+        followGraph.forEachFanBatch(authorId, batchSize, fans -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (long fan : fans) add(conn, FEED_KEY + fan, blogId, time);
+            return null;
+        }));
+    }
+
+    private void add(StringRedisConnection conn, String key, String blogId, long time) {
+        conn.zAdd(key, time, blogId);
+        conn.zRemRange(key, 0, -maxSize - 1);
+        if (maxAgeDays > 0) conn.zRemRangeByScore(key, 0, time - TimeUnit.DAYS.toMillis(maxAgeDays));
+    }
+
+    /**
+     * same as ZREVRANGEBYSCORE inbox max 0 WITHSCORES LIMIT offset count, over the inbox and the
+     * outboxes of the big authors the user follows
+     */
+    @SuppressWarnings("unchecked")
+    public List<ZSetOperations.TypedTuple<String>> read(Long userId, long max, int offset, int count) {
+        List<String> keys = sources(userId);
+        if (keys.size() == 1) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(keys.get(0), 0, max, offset, count);
+            return tuples == null ? new ArrayList<>() : new ArrayList<>(tuples);
+        }
+//        offset + count from every source is enough to cut the merged page
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) conn.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count);
+            return null;
+        });
+        return results.stream()
+                .flatMap(result -> ((Set<ZSetOperations.TypedTuple<String>>) result).stream())
+                .sorted(NEWEST_FIRST)
+                .skip(offset)
+                .limit(count)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * blogs of the inbox and the outboxes the user has seen around max when {@link #read} ran dry,
+     * the database must not show them again; blog id -> score
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Double> seenAround(Long userId, long max) {
+        List<String> keys = sources(userId);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) conn.zRangeByScoreWithScores(key, 0, max + FANOUT_DELAY_MILLIS);
+            return null;
+        });
+        Map<String, Double> seen = new HashMap<>();
+        for (Object result : results) {
+            for (ZSetOperations.TypedTuple<String> tuple : (Set<ZSetOperations.TypedTuple<String>>) result) {
+                seen.put(tuple.getValue(), tuple.getScore());
+            }
+        }
+        return seen;
+    }
+
+    public List<Long> followees(Long userId) {
+        return new ArrayList<>(followGraph.follows(userId));
+    }
+
+    private List<String> sources(Long userId) {
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        followGraph.warmFollows(userId);
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, BIG_AUTHORS_KEY);
+        if (bigAuthors != null) bigAuthors.forEach(author -> keys.add(OUTBOX_KEY + author));
+        return keys;
+    }
+}